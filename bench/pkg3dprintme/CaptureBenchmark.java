@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+/**
+ * The capture benchmark runs the real NetworkController against the
+ * loopback ImageServer simulator and reports, for each rig size, how long
+ * discovery and sync take, how closely the shutters were aligned, and how
+ * fast the images came back. It then runs a burst and reports the
+ * sustained frame rate, from the first shutter to the last image.
+ *
+ * Usage: CaptureBenchmark [hosts,...] [imageSize] [imagesPerHost]
+ *                         [latencyMs] [jitterMs] [burstFrames]
+ *                         [burstIntervalMs]
+ *
+ * @author Kieran
+ */
+public class CaptureBenchmark {
+
+    private static final int UDP_PORT = 18888;
+    private static final int REGISTRATION_PORT = 22345;
+    private static final int HOST_PORT = 32345;
+
+    /**
+     * @param args the command line arguments
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String[] rigs = (args.length > 0 ? args[0] : "10,50,200").split(",");
+        int imageSize = args.length > 1 ? Integer.parseInt(args[1]) : 2 << 20;
+        int imagesPerHost = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int latency = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int jitter = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        int frames = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+        int interval = args.length > 6 ? Integer.parseInt(args[6]) : 100;
+
+        System.out.println("hosts,discovery_ms,found,sync_ms,"
+                + "skew_max_ms,skew_p99_ms,transfer_ms,throughput_mb_s,burst_fps");
+        for (int i = 0; i < rigs.length; i++) {
+            int hosts = Integer.parseInt(rigs[i].trim());
+            run(new ImageServerSimulator(hosts, imageSize, imagesPerHost,
+                    latency, jitter, UDP_PORT + i, REGISTRATION_PORT + i,
+                    HOST_PORT + i), i, frames, interval);
+        }
+    }
+
+    private static void run(ImageServerSimulator simulator, int run,
+                            int frames, int interval) throws Exception {
+        simulator.start();
+        NetworkController controller = new NetworkController("127.0.0.1",
+                UDP_PORT + run, REGISTRATION_PORT + run, HOST_PORT + run,
+                simulator.getHosts());
+        Path path = Files.createTempDirectory("capture-benchmark");
+        try {
+            long start = System.nanoTime();
+            HostList hostList = controller.getHosts();
+            long discovery = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            controller.sync(hostList);
+            long sync = System.nanoTime() - start;
+
+            controller.capture("benchmark", LocalDate.now(), path.toString());
+            long end = System.nanoTime();
+            CaptureReport report = controller.getLastCaptureReport();
+            long transfer = end - report.getTarget();
+
+            ArrayList<CaptureReport> burst = controller.burst("burst",
+                    LocalDate.now(), path.toString(), frames, interval,
+                    CaptureListener.NONE);
+            long burstTime = System.nanoTime() - burst.get(0).getTarget();
+
+            System.out.println(String.format(
+                    "%d,%.1f,%d,%.1f,%.3f,%.3f,%.1f,%.1f,%.2f",
+                    simulator.getHosts(), discovery / 1e6, hostList.size(),
+                    sync / 1e6, report.getMaxSkew() / 1e6,
+                    report.getP99Skew() / 1e6, transfer / 1e6,
+                    simulator.getBytesPerCapture() / 1e6 / (transfer / 1e9),
+                    frames / (burstTime / 1e9)));
+        } finally {
+            controller.shutdown();
+            simulator.stop();
+            delete(path);
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, 
+                            BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, 
+                                    IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
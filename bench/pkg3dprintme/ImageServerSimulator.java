@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+
+/**
+ * The ImageServer simulator stands in for a rig of Pis on the loopback
+ * interface. Each simulated host listens on its own loopback address
+ * (127.1.x.y) and speaks the same protocol as a real ImageServer: it
+ * registers when it hears an announcement, answers pings with its own
+ * clock, and answers captures and previews with its images in chunk
+ * frames. Every host has its own clock offset, and every command is
+ * delayed by the configured latency plus a random jitter. Connections can
+ * also be made to drop part way through an image, to exercise resumed
+ * transfers, and trigger datagrams can be made to go missing, to exercise
+ * the resend over the control connection.
+ *
+ * One UDP socket on 127.0.0.1 hears announcements and trigger datagrams
+ * on behalf of every host; point the client's broadcast and trigger
+ * addresses there. Each host acknowledges a trigger from its own
+ * address.
+ *
+ * Every image is a real JPEG of a gradient, with an EXIF capture time,
+ * padded to the configured size with comment segments, so that the
+ * client can check and thumbnail what it receives. Sizes too small to
+ * hold the JPEG get random bytes between the start and end markers
+ * instead.
+ *
+ * @author Kieran
+ */
+class ImageServerSimulator {
+
+    private final int hosts;
+    private final int imageSize;
+    private final int imagesPerHost;
+    private final int latency;
+    private final int jitter;
+    private final int udpPort;
+    private final int registrationPort;
+    private final int hostPort;
+    private final ArrayList<SimulatedHost> simulatedHosts;
+    private final BufferPool pool;
+    private final byte[] image;
+    private final long[] lengths;
+    private final int[] checksums;
+    private volatile double dropRate;
+    private volatile double triggerLoss;
+    private DatagramSocket announcements;
+    private volatile boolean running;
+
+    /**
+     * @param hosts the number of hosts to simulate.
+     * @param imageSize the size of each image, in bytes.
+     * @param imagesPerHost the number of images each host returns.
+     * @param latency the delay before each command is handled, in ms.
+     * @param jitter the maximum random extra delay, in ms.
+     * @param udpPort the announcement port.
+     * @param registrationPort the client's registration port.
+     * @param hostPort the port every simulated host accepts commands on.
+     */
+    public ImageServerSimulator(int hosts, int imageSize, int imagesPerHost,
+            int latency, int jitter, int udpPort, int registrationPort,
+                                                            int hostPort) {
+        this.hosts = hosts;
+        this.imageSize = imageSize;
+        this.imagesPerHost = imagesPerHost;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.udpPort = udpPort;
+        this.registrationPort = registrationPort;
+        this.hostPort = hostPort;
+        simulatedHosts = new ArrayList<>();
+        pool = new BufferPool(FrameChannel.MAX_PAYLOAD, 4 * hosts);
+        image = createImage(imageSize, hosts);
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        lengths = new long[imagesPerHost];
+        checksums = new int[imagesPerHost];
+        for (int i = 0; i < imagesPerHost; i++) {
+            lengths[i] = imageSize;
+            checksums[i] = (int) crc.getValue();
+        }
+    }
+
+    /**
+     * @param dropRate the probability that a host drops its connection
+     *                 half way through sending an image.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * @param triggerLoss the probability that a host misses a trigger
+     *                    datagram.
+     */
+    public void setTriggerLoss(double triggerLoss) {
+        this.triggerLoss = triggerLoss;
+    }
+
+    /**
+     * This function builds the image every host sends: a gradient encoded
+     * as a JPEG, an APP1 segment with the EXIF capture time after the
+     * start of image, and comment segments after that to bring it to the
+     * requested size. Any remainder too small for a segment trails the
+     * end of image, as some cameras' data does.
+     */
+    private static byte[] createImage(int imageSize, long seed) {
+        BufferedImage gradient = new BufferedImage(640, 480, 
+                                            BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < gradient.getHeight(); y++) {
+            for (int x = 0; x < gradient.getWidth(); x++) {
+                gradient.setRGB(x, y, (x * 255 / 640) << 16 
+                                        | (y * 255 / 480) << 8 | 0x80);
+            }
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(gradient, "jpg", encoded);
+        } catch (IOException e) {
+            encoded.reset();
+        }
+        byte[] jpeg = encoded.toByteArray();
+        byte[] exif = createExif("2016:05:01 12:00:00");
+        if (jpeg.length == 0 || jpeg.length + exif.length > imageSize) {
+            byte[] image = new byte[imageSize];
+            new Random(seed).nextBytes(image);
+            image[0] = (byte) 0xFF;
+            image[1] = (byte) 0xD8;
+            image[imageSize - 2] = (byte) 0xFF;
+            image[imageSize - 1] = (byte) 0xD9;
+            return image;
+        }
+        ByteBuffer image = ByteBuffer.allocate(imageSize);
+        image.put(jpeg, 0, 2).put(exif);
+        int padding = imageSize - jpeg.length - exif.length;
+        while (padding >= 4) {
+            int length = Math.min(padding, 0xFFFF + 2) - 2;
+            image.put((byte) 0xFF).put((byte) 0xFE).putShort((short) length);
+            image.position(image.position() + length - 2);
+            padding -= length + 2;
+        }
+        image.put(jpeg, 2, jpeg.length - 2);
+        return image.array();
+    }
+
+    /**
+     * This function builds an APP1 segment whose EXIF directory holds
+     * only the original date and time.
+     */
+    private static byte[] createExif(String time) {
+        ByteBuffer tiff = ByteBuffer.allocate(64);
+        tiff.put(new byte[] {'M', 'M', 0, 42}).putInt(8);
+        tiff.putShort((short) 1).putShort((short) 0x8769)
+                .putShort((short) 4).putInt(1).putInt(26).putInt(0);
+        tiff.putShort((short) 1).putShort((short) 0x9003)
+                .putShort((short) 2).putInt(20).putInt(44).putInt(0);
+        tiff.put(time.getBytes(StandardCharsets.US_ASCII))
+                                                        .put((byte) 0);
+        ByteBuffer segment = ByteBuffer.allocate(4 + 6 + tiff.position());
+        segment.put((byte) 0xFF).put((byte) 0xE1)
+                .putShort((short) (segment.capacity() - 2))
+                .put(new byte[] {'E', 'x', 'i', 'f', 0, 0})
+                .put(tiff.array(), 0, tiff.position());
+        return segment.array();
+    }
+
+    /**
+     * This function binds every simulated host and the announcement
+     * socket, and starts answering.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        running = true;
+        for (int i = 0; i < hosts; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[] {
+                127, 1, (byte) (1 + i / 250), (byte) (1 + i % 250)});
+            SimulatedHost host = new SimulatedHost("sim-" + i, address);
+            simulatedHosts.add(host);
+            host.start();
+        }
+        announcements = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), udpPort));
+        daemon("sim-announce", this::listen).start();
+    }
+
+    /**
+     * This function stops every simulated host.
+     */
+    public void stop() {
+        running = false;
+        announcements.close();
+        simulatedHosts.forEach(SimulatedHost::stop);
+    }
+
+    private void listen() {
+        byte[] buf = new byte[2048];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                announcements.receive(packet);
+                InetAddress client = packet.getAddress();
+                if (packet.getLength() > 1 && buf[0] == FrameChannel.VERSION
+                                    && buf[1] == FrameChannel.TRIGGER) {
+                    byte[] trigger = Arrays.copyOf(buf, packet.getLength());
+                    int port = packet.getPort();
+                    for (SimulatedHost host : simulatedHosts) {
+                        daemon("sim-trigger", () -> host.triggered(
+                                ByteBuffer.wrap(trigger), client, port)).start();
+                    }
+                    continue;
+                }
+                for (SimulatedHost host : simulatedHosts) {
+                    daemon("sim-register", () -> host.register(client)).start();
+                }
+            } catch (IOException e) {
+                // The socket has been closed by stop.
+            }
+        }
+    }
+
+    private void delay() {
+        int wait = latency + (jitter > 0
+                ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public int getHosts() {
+        return hosts;
+    }
+
+    public long getBytesPerCapture() {
+        return (long) hosts * imagesPerHost * imageSize;
+    }
+
+    /**
+     * A simulated host is a single ImageServer with its own address and
+     * its own clock.
+     */
+    private class SimulatedHost {
+
+        private final String name;
+        private final InetAddress address;
+        private final long clockOffset;
+        private ServerSocket server;
+        private DatagramSocket acks;
+        private volatile long lastShutter;
+        private long triggerId;
+        private long triggerTime;
+
+        SimulatedHost(String name, InetAddress address) {
+            this.name = name;
+            this.address = address;
+            clockOffset = ThreadLocalRandom.current().nextLong(
+                    -TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10));
+        }
+
+        long now() {
+            return System.nanoTime() + clockOffset;
+        }
+
+        void start() throws IOException {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(address, hostPort));
+            acks = new DatagramSocket(new InetSocketAddress(address, 0));
+            daemon(name, this::accept).start();
+        }
+
+        void stop() {
+            acks.close();
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+
+        void register(InetAddress client) {
+            delay();
+            try (Socket socket = new Socket(client, registrationPort, address, 0)) {
+                socket.getOutputStream().write(
+                        FrameChannel.encodeRegister(name).array());
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(name + " failed to register: " + e.getMessage());
+                }
+            }
+        }
+
+        void accept() {
+            while (running) {
+                try {
+                    Socket socket = server.accept();
+                    daemon(name + "-connection", () -> serve(socket)).start();
+                } catch (IOException e) {
+                    // The server has been closed by stop.
+                }
+            }
+        }
+
+        void serve(Socket socket) {
+            try (Socket connection = socket) {
+                connection.setTcpNoDelay(true);
+                OutputStream os = new BufferedOutputStream(
+                        connection.getOutputStream());
+                FrameChannel channel = new FrameChannel(
+                        Channels.newChannel(connection.getInputStream()),
+                        Channels.newChannel(os), pool);
+                try {
+                    while (running) {
+                        byte type = channel.read();
+                        if (type == FrameChannel.PING) {
+                            long received = now();
+                            channel.writePong(received, now());
+                        } else if (type == FrameChannel.CAPTURE
+                                || type == FrameChannel.PREVIEW) {
+                            capture(channel, os,
+                                    channel.payload().getLong());
+                        } else if (type == FrameChannel.TRIGGER) {
+                            ByteBuffer trigger = channel.payload();
+                            long id = trigger.getLong();
+                            trigger(channel, os, id,
+                                    FrameChannel.decodeTrigger(trigger, address));
+                        } else if (type == FrameChannel.BURST) {
+                            ByteBuffer burst = channel.payload();
+                            burst(channel, os, burst.getLong(),
+                                    burst.getLong(), burst.getInt());
+                        } else if (type == FrameChannel.FETCH) {
+                            ByteBuffer fetch = channel.payload();
+                            fetch(channel, os, fetch.getLong(),
+                                    fetch.getInt(), fetch.getLong(),
+                                    fetch.getLong());
+                        }
+                        os.flush();
+                    }
+                } finally {
+                    channel.release();
+                }
+            } catch (IOException e) {
+                // The client has closed the connection.
+            }
+        }
+
+        void capture(FrameChannel channel, OutputStream os, long captureTime)
+                                                        throws IOException {
+            delay();
+            // A real Pi has a core to itself and fires on time, or as soon
+            // as the command arrives if it arrives late. Simulated hosts
+            // share the client's cores, so the shutter time is taken from
+            // the command rather than from when this thread wakes up.
+            long shutter = Math.max(captureTime, now());
+            parkUntil(shutter);
+            send(channel, os, shutter, 0, 0);
+        }
+
+        /**
+         * A trigger datagram schedules the capture and is acknowledged; the
+         * images are sent once the client asks for them over the control
+         * connection.
+         */
+        void triggered(ByteBuffer datagram, InetAddress client, int port) {
+            if (ThreadLocalRandom.current().nextDouble() < triggerLoss) {
+                return;
+            }
+            delay();
+            try {
+                ByteBuffer payload = FrameChannel.openDatagram(datagram,
+                                                    FrameChannel.TRIGGER);
+                long id = payload.getLong();
+                Long time = FrameChannel.decodeTrigger(payload, address);
+                if (time == null) {
+                    return;
+                }
+                schedule(id, time);
+                ByteBuffer ack = FrameChannel.encodeTriggerAck(id);
+                acks.send(new DatagramPacket(ack.array(), ack.limit(),
+                                                        client, port));
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(name + " failed to acknowledge: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * This function schedules a capture, unless it has been scheduled
+         * already by an earlier copy of the trigger.
+         *
+         * @return the shutter time of the capture.
+         */
+        synchronized long schedule(long id, long captureTime) {
+            if (triggerId != id) {
+                triggerId = id;
+                triggerTime = Math.max(captureTime, now());
+            }
+            return triggerTime;
+        }
+
+        /**
+         * @return the shutter time of the given trigger, or 0 if it is not
+         *         the trigger most recently scheduled.
+         */
+        synchronized long scheduled(long id) {
+            return id != 0 && id == triggerId ? triggerTime : 0;
+        }
+
+        void trigger(FrameChannel channel, OutputStream os, long id,
+                                    Long captureTime) throws IOException {
+            delay();
+            if (captureTime == null) {
+                channel.writeError("Trigger does not include " + name);
+                return;
+            }
+            long shutter = schedule(id, captureTime);
+            parkUntil(shutter);
+            send(channel, os, shutter, 0, 0);
+        }
+
+        void burst(FrameChannel channel, OutputStream os, long start,
+                            long interval, int frames) throws IOException {
+            delay();
+            // A real Pi takes burst frames on a camera thread of its own,
+            // so a frame that falls due while the previous one is still
+            // being sent is taken on time and only its transfer is late.
+            for (int n = 0; n < frames; n++) {
+                long shutter = start + n * interval;
+                parkUntil(shutter);
+                send(channel, os, shutter, 0, 0);
+            }
+        }
+
+        /**
+         * A fetch asks for the capture by its shutter time or, with a
+         * shutter time of 0, by the trigger that fired it, which the host
+         * has taken even if its reply was never collected.
+         */
+        void fetch(FrameChannel channel, OutputStream os, long shutter,
+                    int first, long from, long trigger) throws IOException {
+            delay();
+            long held = shutter == 0 ? scheduled(trigger)
+                    : shutter == lastShutter ? shutter : 0;
+            if (held == 0) {
+                channel.writeError("Capture " + shutter + " is no longer held");
+            } else if (first < 0 || first > imagesPerHost
+                                    || from < 0 || from > imageSize) {
+                channel.writeError("Range out of bounds");
+            } else {
+                parkUntil(held);
+                send(channel, os, held, first, (int) from);
+            }
+        }
+
+        void parkUntil(long time) {
+            while (now() < time) {
+                LockSupport.parkNanos(time - now());
+            }
+        }
+
+        void send(FrameChannel channel, OutputStream os, long shutter,
+                                int first, int from) throws IOException {
+            lastShutter = shutter;
+            channel.writeShutter(shutter, lengths, checksums);
+            for (int index = first; index < imagesPerHost; index++) {
+                int offset = index == first ? from : 0;
+                int drop = ThreadLocalRandom.current().nextDouble() < dropRate
+                        ? offset + (imageSize - offset) / 2 : -1;
+                do {
+                    if (drop >= 0 && offset >= drop) {
+                        os.flush();
+                        throw new IOException("Simulated connection drop");
+                    }
+                    int length = Math.min(FrameChannel.CHUNK_SIZE,
+                                                    imageSize - offset);
+                    channel.writeChunk(index, imageSize, offset,
+                                    ByteBuffer.wrap(image, offset, length));
+                    offset += length;
+                } while (offset < imageSize);
+                os.flush();
+                channel.expect(FrameChannel.ACK);
+            }
+        }
+    }
+
+}
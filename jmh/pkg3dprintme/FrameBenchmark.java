@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the wire protocol: encoding and decoding control frames,
+ * and a full checksummed image chunk in each direction.
+ *
+ * @author Kieran
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+
+    private BufferPool pool;
+    private MemoryChannel pingChannel;
+    private MemoryChannel controlChannel;
+    private MemoryChannel chunkChannel;
+    private FrameChannel writer;
+    private FrameChannel controlReader;
+    private FrameChannel chunkReader;
+    private MemoryChannel encodeChannel;
+    private FrameChannel chunkWriter;
+    private ByteBuffer chunk;
+    private ByteBuffer sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        pool = new BufferPool(FrameChannel.MAX_PAYLOAD, 4);
+        pingChannel = new MemoryChannel(64);
+        controlChannel = new MemoryChannel(64);
+        chunkChannel = new MemoryChannel(FrameChannel.HEADER_SIZE 
+                                            + FrameChannel.MAX_PAYLOAD);
+        writer = new FrameChannel(null, pingChannel, pool);
+        controlReader = new FrameChannel(controlChannel, null, pool);
+        chunkReader = new FrameChannel(chunkChannel, null, pool);
+        byte[] data = new byte[FrameChannel.CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        chunk = ByteBuffer.wrap(data);
+        sink = ByteBuffer.allocateDirect(FrameChannel.CHUNK_SIZE);
+
+        FrameChannel pongWriter = new FrameChannel(null, controlChannel, pool);
+        pongWriter.writePong(1, 2);
+        pongWriter.release();
+        controlChannel.flip();
+        encodeChannel = new MemoryChannel(FrameChannel.HEADER_SIZE 
+                                            + FrameChannel.MAX_PAYLOAD);
+        chunkWriter = new FrameChannel(null, encodeChannel, pool);
+        FrameChannel setupWriter = new FrameChannel(null, chunkChannel, pool);
+        setupWriter.writeChunk(0, FrameChannel.CHUNK_SIZE, 0, chunk.duplicate());
+        setupWriter.release();
+        chunkChannel.flip();
+    }
+
+    @Benchmark
+    public void encodePing() throws IOException {
+        pingChannel.clear();
+        writer.writePing(System.nanoTime());
+    }
+
+    @Benchmark
+    public long decodePong() throws IOException {
+        controlChannel.rewind();
+        ByteBuffer pong = controlReader.expect(FrameChannel.PONG);
+        return pong.getLong() + pong.getLong();
+    }
+
+    @Benchmark
+    public void encodeChunk() throws IOException {
+        encodeChannel.clear();
+        chunkWriter.writeChunk(0, FrameChannel.CHUNK_SIZE, 0, chunk.duplicate());
+    }
+
+    @Benchmark
+    public int decodeChunk() throws IOException {
+        chunkChannel.rewind();
+        sink.clear();
+        FrameChannel.ImageChannel image = chunkReader.openImage(0);
+        while (image.read(sink) > 0) {
+            // Drain the whole chunk.
+        }
+        return sink.position();
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the host bookkeeping on the capture path: sync table
+ * lookups and updates, the clock estimate, and host list validation.
+ *
+ * @author Kieran
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HostBenchmark {
+
+    @Param({"10", "200"})
+    public int hosts;
+
+    private HostList hostList;
+    private SyncTable syncTable;
+    private SyncEntry entry;
+    private long[] sent;
+    private long[] hostReceived;
+    private long[] hostSent;
+    private long[] received;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        hostList = new HostList();
+        syncTable = new SyncTable();
+        entry = new SyncEntry(0, 1000, 0, 200000, 100000);
+        for (int i = 0; i < hosts; i++) {
+            Host host = new Host("pi-" + i, "10.0.0." + i, "Connected");
+            hostList.add(host);
+            syncTable.add(host, entry);
+        }
+        sent = new long[16];
+        hostReceived = new long[16];
+        hostSent = new long[16];
+        received = new long[16];
+        for (int i = 0; i < 16; i++) {
+            sent[i] = i * 1000000L;
+            hostReceived[i] = sent[i] + 5000000000L + 100000 + (i * 7919) % 50000;
+            hostSent[i] = hostReceived[i] + 10000;
+            received[i] = sent[i] + 220000 + (i * 104729) % 80000;
+        }
+    }
+
+    private Host nextHost() {
+        next = (next + 1) % hosts;
+        return hostList.get(next);
+    }
+
+    @Benchmark
+    public SyncEntry syncTableLookup() {
+        return syncTable.get(nextHost());
+    }
+
+    @Benchmark
+    public void syncTableUpdate() {
+        syncTable.add(nextHost(), entry);
+    }
+
+    @Benchmark
+    public SyncEntry syncEstimate() {
+        return SyncEntry.estimate(sent, hostReceived, hostSent, received);
+    }
+
+    @Benchmark
+    public boolean hostListValidate() {
+        return hostList.validate();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the two image sinks: the in-memory ImageSet used by
+ * previews and the ImageArchive write path used by captures. The archive
+ * receives the same image every time, so it measures hashing plus the
+ * duplicate path. Point store.dir at a tmpfs (e.g. /dev/shm) to measure the code rather than
+ * the disk.
+ *
+ * @author Kieran
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageBenchmark {
+
+    @Param({"Images/Liming1/11624852_001107119409_2.jpg"})
+    public String image;
+
+    private Host host;
+    private MemoryChannel channel;
+    private long length;
+    private ImageArchive store;
+    private int index;
+
+    @Setup
+    public void setUp() throws IOException {
+        host = new Host("pi-0", "10.0.0.1", "Connected");
+        byte[] jpeg = Files.readAllBytes(Paths.get(image));
+        length = jpeg.length;
+        channel = new MemoryChannel(jpeg.length);
+        channel.write(ByteBuffer.wrap(jpeg));
+        channel.flip();
+        Path storeDir = Paths.get(System.getProperty("store.dir",
+                                System.getProperty("java.io.tmpdir")));
+        Path archive = Files.createTempDirectory(storeDir, "jmh");
+        store = new ImageArchive(archive, archive.resolve("session"),
+                                                new CaptureMetrics());
+    }
+
+    @Setup(Level.Invocation)
+    public void rewind() {
+        channel.rewind();
+    }
+
+    @Benchmark
+    public long imageSetReceive() throws IOException {
+        ImageSet imageSet = new ImageSet();
+        imageSet.receive(host, 0, channel, length);
+        long received = imageSet.getEncoded(host.getAddress(), 0).length();
+        imageSet.release();
+        return received;
+    }
+
+    @Benchmark
+    public void imageArchiveReceive() throws IOException {
+        // Cycle through a few files so the benchmark measures writes
+        // rather than repeated truncation of a single file.
+        index = (index + 1) % 16;
+        store.receive(host, index, channel, length);
+        store.commit(host, index);
+    }
+
+}
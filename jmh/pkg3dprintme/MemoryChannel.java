@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A memory channel is an in-memory stand-in for a socket, so that the
+ * benchmarks measure the code under test rather than the network. Writes
+ * go into the buffer; reads come back out of it after a flip.
+ *
+ * @author Kieran
+ */
+class MemoryChannel implements ReadableByteChannel, WritableByteChannel {
+
+    private final ByteBuffer buffer;
+
+    public MemoryChannel(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * This function makes everything written so far readable again.
+     */
+    public void flip() {
+        buffer.flip();
+    }
+
+    /**
+     * This function re-reads the same content from the start.
+     */
+    public void rewind() {
+        buffer.rewind();
+    }
+
+    public void clear() {
+        buffer.clear();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int count = src.remaining();
+        buffer.put(src);
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer pool hands out fixed-size direct buffers and takes them back
+ * when they are no longer needed, so the network path does not allocate
+ * (or wait on the collector to free) a buffer per frame. At most capacity
+ * buffers are kept; any beyond that are left to the collector.
+ *
+ * @author Kieran
+ */
+class BufferPool {
+    
+    private final int bufferSize;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger pooled;
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        buffers = new ConcurrentLinkedQueue<>();
+        pooled = new AtomicInteger();
+    }
+
+    /**
+     * @return a cleared buffer of the pool's buffer size.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param buffer a buffer previously acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize 
+                && pooled.incrementAndGet() <= capacity) {
+            buffers.offer(buffer);
+        } else if (buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+}
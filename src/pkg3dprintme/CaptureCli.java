@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The command line front end runs the capture system without a display,
+ * for a headless booth server or for batch scripts. It uses none of
+ * JavaFX, so it starts in a fraction of the time the interface takes.
+ *
+ * Results are written to standard output one line at a time, tab
+ * separated, and everything else - the registry's and the network
+ * controller's own messages included - goes to standard error. The exit
+ * status is 0 on success, 1 if the command failed and 2 if it was not
+ * understood.
+ *
+ * Usage: CaptureCli [--broadcast ADDRESS] [--ports UDP,REGISTER,HOST]
+ *                   [--hosts N] COMMAND
+ *
+ *   discover                      list the ImageServers on the network.
+ *   capture --name NAME --path DIR [--date YYYY-MM-DD] [--mobile NUMBER]
+ *           [--history FILE]      capture once, then exit.
+ *   daemon [--journal FILE] [--history FILE]
+ *                                 keep the rig connected and run each
+ *                                 discover or capture command read from
+ *                                 standard input, through a journaled
+ *                                 capture queue; quit or the end of the
+ *                                 input stops it; any other command is
+ *                                 refused. Arguments holding spaces may
+ *                                 be quoted.
+ *   extract --session FILE [--host ADDRESS --index N --out FILE]
+ *                                 list the images in a session container
+ *                                 (written when pkg3dprintme.container is
+ *                                 true), or copy one of them out; the rig
+ *                                 is not contacted.
+ *   history [--name PREFIX] [--mobile PREFIX] [--from YYYY-MM-DD]
+ *           [--to YYYY-MM-DD] [--path PREFIX] [--hosts ADDRESS,...]
+ *           [--limit N] [--history FILE]
+ *                                 list the finished captures that match,
+ *                                 newest first; the rig is not contacted.
+ *
+ * Triggers are sent to the trigger group 239.255.3.3, as on the booth,
+ * unless --broadcast is given, when they are sent to that address.
+ *
+ * Captures are recorded in the capture history, ~/.3dprintme/history.tsv
+ * unless --history names another file.
+ *
+ * @author Kieran
+ */
+public class CaptureCli {
+
+    private static final int OK = 0;
+    private static final int FAILED = 1;
+    private static final int USAGE = 2;
+    private static final int QUEUE_CAPACITY = 8;
+    private static final String USAGE_TEXT = String.join("\n",
+            "Usage: CaptureCli [--broadcast ADDRESS] [--ports UDP,REGISTER,HOST]",
+            "                  [--hosts N] COMMAND",
+            "  discover",
+            "  capture --name NAME --path DIR [--date YYYY-MM-DD] [--mobile NUMBER]",
+            "          [--history FILE]",
+            "  daemon [--journal FILE] [--history FILE]",
+            "  extract --session FILE [--host ADDRESS --index N --out FILE]",
+            "  history [--name PREFIX] [--mobile PREFIX] [--from YYYY-MM-DD]",
+            "          [--to YYYY-MM-DD] [--path PREFIX] [--hosts ADDRESS,...]",
+            "          [--limit N] [--history FILE]");
+
+    private final PrintStream out;
+    private final NetworkController controller;
+    private final ArrayList<CompletableFuture<CaptureJob>> jobs 
+                                                    = new ArrayList<>();
+
+    CaptureCli(PrintStream out, NetworkController controller) {
+        this.out = out;
+        this.controller = controller;
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        int status;
+        try {
+            int command = 0;
+            while (command < args.length && args[command].startsWith("--")) {
+                command += 2;
+            }
+            if (command >= args.length) {
+                throw new IllegalArgumentException("No command given.");
+            }
+            Map<String, String> options = parse(args, 0, command);
+            NetworkController controller = args[command].equals("extract")
+                    || args[command].equals("history") 
+                    ? null : connect(options);
+            try {
+                status = new CaptureCli(out, controller).run(args, command);
+            } finally {
+                if (controller != null) {
+                    controller.shutdown();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE_TEXT);
+            status = USAGE;
+        } catch (Exception e) {
+            System.err.println("Error: " + e);
+            status = FAILED;
+        }
+        out.flush();
+        System.exit(status);
+    }
+
+    /**
+     * This function creates the network controller, for the booth's own
+     * network unless the options point it elsewhere. Triggers go to the
+     * trigger group, as on the booth, unless --broadcast is given, when
+     * they go to the broadcast address along with the announcements.
+     */
+    private static NetworkController connect(Map<String, String> options) {
+        if (options.isEmpty()) {
+            return new NetworkController();
+        }
+        String[] ports = options.getOrDefault("ports", "8888,12345,12345")
+                                                                .split(",");
+        if (ports.length != 3) {
+            throw new IllegalArgumentException("--ports takes three ports.");
+        }
+        String broadcast = options.getOrDefault("broadcast", 
+                                                        "255.255.255.255");
+        return new NetworkController(broadcast, 
+                options.containsKey("broadcast") 
+                        ? broadcast : NetworkController.TRIGGER_GROUP,
+                number(ports[0]), number(ports[1]), number(ports[2]),
+                options.containsKey("hosts") ? number(options.get("hosts"))
+                                            : NetworkController.MAX_PIS);
+    }
+
+    /**
+     * This function runs the command starting at the given argument.
+     * 
+     * @return the exit status.
+     */
+    int run(String[] args, int command) throws Exception {
+        Map<String, String> options = parse(args, command + 1, args.length);
+        switch (args[command]) {
+            case "discover":
+                return discover();
+            case "capture":
+                return capture(options);
+            case "daemon":
+                return daemon(options);
+            case "extract":
+                return extract(options);
+            case "history":
+                return history(options);
+            default:
+                throw new IllegalArgumentException(
+                                    "Unknown command " + args[command] + ".");
+        }
+    }
+
+    /**
+     * This function lists the ImageServers that answer a discovery, one
+     * per line as name, address and status.
+     */
+    private int discover() throws Exception {
+        HostList hostList = controller.getHosts();
+        for (Host host : hostList.getAll()) {
+            out.println(host.getName() + "\t" + host.getAddress() 
+                                        + "\t" + host.getStatus());
+        }
+        return hostList.size() > 0 ? OK : FAILED;
+    }
+
+    /**
+     * This function captures once, printing a line for each host as its
+     * images are stored and the shutter report at the end.
+     */
+    private int capture(Map<String, String> options) throws Exception {
+        CaptureHistory history = new CaptureHistory(historyPath(options));
+        history.open();
+        try {
+            Set<String> hosts = ConcurrentHashMap.newKeySet();
+            String name = required(options, "name");
+            LocalDate date = date(options);
+            String path = path(options);
+            CaptureReport report = controller.capture(name, date, path, 
+                    new CaptureListener() {
+                        @Override
+                        public void hostCompleted(Host host) {
+                            hosts.add(host.getAddress());
+                            out.println("stored\t" + host.getName() 
+                                            + "\t" + host.getAddress());
+                        }
+                    });
+            history.record(name, options.getOrDefault("mobile", ""), date, 
+                                                            path, hosts);
+            out.println("captured\t" + report.getMaxSkew() 
+                                    + "\t" + report.getP99Skew());
+            return OK;
+        } finally {
+            history.close();
+        }
+    }
+
+    /**
+     * This function keeps the controller running and reads commands from
+     * standard input, so a script pays for startup and discovery once.
+     * Captures are queued and journaled as they are in the interface; each
+     * prints a queued line as soon as it is accepted and a done or failed
+     * line once it has finished. Only the commands that drive the rig are
+     * read; the rest would start another daemon or work on files outside
+     * the booth's control, so they are refused with an error line.
+     */
+    private int daemon(Map<String, String> options) throws Exception {
+        Path journal = options.containsKey("journal") 
+                ? Paths.get(options.get("journal"))
+                : Paths.get(System.getProperty("user.home"), ".3dprintme", 
+                                                        "daemon.journal");
+        CaptureHistory history = new CaptureHistory(historyPath(options));
+        history.open();
+        CaptureQueue queue = new CaptureQueue(controller, journal, history,
+                                        QUEUE_CAPACITY, CaptureListener.NONE);
+        for (CaptureJob job : queue.start()) {
+            out.println("resumed\t" + job.getId());
+            report(job);
+        }
+        out.println("ready");
+        BufferedReader in = new BufferedReader(
+                                        new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words;
+                try {
+                    words = words(line);
+                } catch (IllegalArgumentException e) {
+                    out.println("error\t" + e.getMessage());
+                    continue;
+                }
+                if (words.length == 0) {
+                    continue;
+                }
+                if (words[0].equals("quit")) {
+                    break;
+                }
+                try {
+                    switch (words[0]) {
+                        case "capture":
+                            submit(queue, parse(words, 1, words.length));
+                            break;
+                        case "discover":
+                            discover();
+                            break;
+                        default:
+                            out.println("error\tThe daemon only runs "
+                                    + "discover, capture and quit, not " 
+                                    + words[0] + ".");
+                    }
+                } catch (IllegalArgumentException e) {
+                    out.println("error\t" + e.getMessage());
+                } catch (Exception e) {
+                    out.println("error\t" + e);
+                }
+            }
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0]))
+                    .handle((finished, e) -> finished).join();
+        } finally {
+            queue.stop();
+            history.close();
+        }
+        return OK;
+    }
+
+    /**
+     * This function lists the images in a session container as host,
+     * address, index, length and SHA-256, or, given a host address and
+     * index, copies that image to a file straight from the container's
+     * map.
+     */
+    private int extract(Map<String, String> options) throws Exception {
+        try (SessionContainer container = SessionContainer.open(
+                                Paths.get(required(options, "session")))) {
+            if (!options.containsKey("host")) {
+                for (SessionContainer.Entry entry : container.getEntries()) {
+                    out.println(entry.getName() + "\t" + entry.getAddress() 
+                            + "\t" + entry.getIndex() + "\t" 
+                            + entry.getLength() + "\t" + entry.getHash());
+                }
+                return OK;
+            }
+            SessionContainer.Entry entry = container.find(
+                    options.get("host"), number(required(options, "index")));
+            if (entry == null) {
+                out.println("missing\t" + options.get("host") 
+                                        + "\t" + options.get("index"));
+                return FAILED;
+            }
+            Path target = Paths.get(required(options, "out"));
+            try (FileChannel file = FileChannel.open(target, 
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer image = container.read(entry);
+                while (image.hasRemaining()) {
+                    file.write(image);
+                }
+            }
+            out.println("extracted\t" + target + "\t" + entry.getLength());
+            return OK;
+        }
+    }
+
+    /**
+     * This function lists the finished captures that match the options,
+     * newest first, as id, date, name, mobile, session directory and
+     * hosts.
+     */
+    private int history(Map<String, String> options) throws Exception {
+        CaptureHistory.Query query = new CaptureHistory.Query()
+                .name(options.get("name"))
+                .mobile(options.get("mobile"))
+                .dates(options.containsKey("from") 
+                                ? date(options, "from") : null,
+                        options.containsKey("to") 
+                                ? date(options, "to") : null)
+                .path(options.get("path"));
+        if (options.containsKey("hosts")) {
+            query.hosts(Arrays.asList(options.get("hosts").split(",")));
+        }
+        if (options.containsKey("limit")) {
+            query.limit(number(options.get("limit")));
+        }
+        CaptureHistory searched = new CaptureHistory(historyPath(options));
+        searched.open();
+        try {
+            for (CaptureHistory.Session session : searched.search(query)) {
+                out.println(session.getId() + "\t" + session.getDate() 
+                        + "\t" + session.getName() + "\t" 
+                        + session.getMobile() + "\t" 
+                        + session.getSessionPath() + "\t" 
+                        + String.join(",", session.getHosts()));
+            }
+        } finally {
+            searched.close();
+        }
+        return OK;
+    }
+
+    private static Path historyPath(Map<String, String> options) {
+        return options.containsKey("history") 
+                ? Paths.get(options.get("history"))
+                : Paths.get(System.getProperty("user.home"), ".3dprintme", 
+                                                        "history.tsv");
+    }
+
+    private void submit(CaptureQueue queue, Map<String, String> options) 
+                                                        throws IOException {
+        CaptureJob job = queue.submit(required(options, "name"), 
+                options.getOrDefault("mobile", ""), date(options), 
+                                                        path(options));
+        if (job == null) {
+            out.println("error\tThe capture queue is full.");
+            return;
+        }
+        out.println("queued\t" + job.getId());
+        report(job);
+    }
+
+    /**
+     * This function prints the outcome of a job once it has finished.
+     */
+    private void report(CaptureJob job) {
+        jobs.add(job.getCompletion());
+        job.getCompletion().whenComplete((finished, e) -> {
+            if (e != null) {
+                out.println("failed\t" + job.getId() + "\t" + e.getMessage());
+            } else if (job.getReport() != null) {
+                out.println("done\t" + job.getId() + "\t" 
+                        + job.getReport().getMaxSkew() + "\t" 
+                        + job.getReport().getP99Skew());
+            } else {
+                out.println("done\t" + job.getId());
+            }
+        });
+    }
+
+    /**
+     * This function splits a daemon command into words at whitespace, as
+     * a shell would, except that text in double or single quotes is kept
+     * together, so a name or path may contain spaces.
+     */
+    private static String[] words(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inWord = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unclosed quote.");
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * This function reads --key value pairs from part of the arguments.
+     */
+    private static Map<String, String> parse(String[] args, int from, 
+                                                                int to) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < to; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= to) {
+                throw new IllegalArgumentException(
+                                    "Unexpected argument " + args[i] + ".");
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String key) {
+        String value = options.get(key);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("--" + key + " is required.");
+        }
+        return value;
+    }
+
+    private static LocalDate date(Map<String, String> options) {
+        return options.containsKey("date") 
+                ? date(options, "date") : LocalDate.now();
+    }
+
+    private static LocalDate date(Map<String, String> options, String key) {
+        try {
+            return LocalDate.parse(options.get(key));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(
+                            "--" + key + " must be given as YYYY-MM-DD.");
+        }
+    }
+
+    private static String path(Map<String, String> options) {
+        String path = required(options, "path");
+        if (!Files.isDirectory(Paths.get(path))) {
+            throw new IllegalArgumentException(path + " is not a directory.");
+        }
+        return path;
+    }
+
+    private static int number(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(value + " is not a number.");
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+
+/**
+ * The capture history remembers every capture that has finished, so that
+ * a returning customer's earlier sessions can be found by name, mobile
+ * number, date, save location or the hosts that took part, without
+ * browsing folders. It is kept on disk as an append-only file with one
+ * line of tab separated fields per capture, forced to the disk as each
+ * capture is recorded:
+ *
+ * <pre>
+ *   id recorded name mobile date path hosts
+ * </pre>
+ *
+ * where recorded is the time the capture finished, in milliseconds since
+ * the epoch, and hosts is a comma separated list of addresses. A line cut
+ * short by a crash is ignored when the history is read back.
+ *
+ * The history is read once on open into sorted in-memory indexes, and
+ * each capture recorded afterwards is added to them as it is written, so
+ * a search touches only the matching sessions. Names are matched by
+ * prefix without regard to case, mobile numbers by prefix on their digits
+ * alone, and save locations by prefix; dates are matched by range, and
+ * hosts by set, where a session matches if every host given took part.
+ * A long history can take a while to read, so it may be opened in the
+ * background with openAsync; captures recorded meanwhile wait for it.
+ *
+ * @author Kieran
+ */
+public class CaptureHistory {
+    
+    private static final Comparator<Session> NEWEST_FIRST = Comparator
+            .comparing(Session::getDate).thenComparingLong(Session::getId)
+            .reversed();
+    
+    private final Path path;
+    private final HashMap<Long, Session> sessions;
+    private final TreeMap<String, List<Session>> byName;
+    private final TreeMap<String, List<Session>> byMobile;
+    private final TreeMap<LocalDate, List<Session>> byDate;
+    private final TreeMap<String, List<Session>> byPath;
+    private final HashMap<String, List<Session>> byHost;
+    private final HashMap<String, String> addresses;
+    private FileChannel channel;
+    private CompletableFuture<Integer> opening;
+    private long nextId;
+
+    public CaptureHistory(Path path) {
+        this.path = path;
+        sessions = new HashMap<>();
+        byName = new TreeMap<>();
+        byMobile = new TreeMap<>();
+        byDate = new TreeMap<>();
+        byPath = new TreeMap<>();
+        byHost = new HashMap<>();
+        addresses = new HashMap<>();
+        nextId = 1;
+    }
+
+    /**
+     * This function reads the history back into the indexes and opens it
+     * for appending.
+     * 
+     * @return the number of captures in the history.
+     * @throws IOException 
+     */
+    public synchronized int open() throws IOException {
+        if (Files.exists(path)) {
+            byte[] history = Files.readAllBytes(path);
+            int end = history.length;
+            while (end > 0 && history[end - 1] != '\n') {
+                end--;
+            }
+            for (String line : new String(history, 0, end, 
+                                    StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) {
+                    replay(line);
+                }
+            }
+            if (end < history.length) {
+                // Drop the line cut short, so the next record starts on a
+                // line of its own.
+                try (FileChannel file = FileChannel.open(path, 
+                                            StandardOpenOption.WRITE)) {
+                    file.truncate(end);
+                }
+            }
+        }
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return sessions.size();
+    }
+
+    /**
+     * This function opens the history on a thread of its own, so a long
+     * history does not hold up the caller. It may be called more than
+     * once; every call returns the same load.
+     * 
+     * @return a future for the number of captures in the history.
+     */
+    public synchronized CompletableFuture<Integer> openAsync() {
+        if (opening == null) {
+            CompletableFuture<Integer> load = new CompletableFuture<>();
+            Thread loader = new Thread(() -> {
+                try {
+                    load.complete(open());
+                } catch (IOException | RuntimeException e) {
+                    load.completeExceptionally(e);
+                }
+            }, "history");
+            loader.setDaemon(true);
+            opening = load;
+            loader.start();
+        }
+        return opening;
+    }
+
+    /**
+     * This function adds one record to the indexes. The same few host
+     * addresses recur in every record, so only one copy of each is kept.
+     */
+    private void replay(String line) {
+        String[] fields = line.split("\t", -1);
+        try {
+            TreeSet<String> hosts = new TreeSet<>();
+            for (String host : fields[6].split(",")) {
+                if (!host.isEmpty()) {
+                    hosts.add(addresses.computeIfAbsent(host, 
+                                                        (key) -> key));
+                }
+            }
+            index(new Session(Long.parseLong(fields[0]), 
+                    Long.parseLong(fields[1]), fields[2], fields[3], 
+                    parseDate(fields[4]), fields[5], 
+                    Collections.unmodifiableSet(hosts)));
+        } catch (RuntimeException e) {
+            System.out.println("Skipping unreadable history record: " + line);
+        }
+    }
+
+    /**
+     * This function reads a date written by LocalDate.toString, without
+     * the formatter LocalDate.parse goes through, which dominates reading
+     * back a long history.
+     */
+    private static LocalDate parseDate(String date) {
+        if (date.length() != 10 || date.charAt(4) != '-' 
+                                || date.charAt(7) != '-') {
+            return LocalDate.parse(date);
+        }
+        return LocalDate.of(Integer.parseInt(date.substring(0, 4)), 
+                        Integer.parseInt(date.substring(5, 7)), 
+                        Integer.parseInt(date.substring(8, 10)));
+    }
+
+    /**
+     * This function records a finished capture job.
+     * 
+     * @param job the job that has finished.
+     * @return the session recorded.
+     * @throws IOException 
+     */
+    public Session record(CaptureJob job) throws IOException {
+        return record(job.getName(), job.getMobile(), job.getDate(), 
+                                        job.getPath(), job.getHosts());
+    }
+
+    /**
+     * This function records a finished capture, writing it to the disk
+     * before adding it to the indexes. If the history is still being
+     * opened in the background, it waits for that first.
+     * 
+     * @param name the name of the client/job.
+     * @param mobile the mobile number of the client.
+     * @param date the datetime of the job.
+     * @param path the path the job was saved to.
+     * @param hosts the addresses of the hosts that took part.
+     * @return the session recorded.
+     * @throws IOException 
+     * @throws IllegalArgumentException if the capture has no date.
+     */
+    public Session record(String name, String mobile, LocalDate date, 
+                    String path, Collection<String> hosts) throws IOException {
+        if (date == null) {
+            throw new IllegalArgumentException("A capture must have a date.");
+        }
+        CompletableFuture<Integer> load;
+        synchronized (this) {
+            load = opening;
+        }
+        if (load != null) {
+            try {
+                load.join();
+            } catch (CompletionException e) {
+                throw new IOException("The capture history could not be read.",
+                                                                e.getCause());
+            }
+        }
+        return append(name, mobile, date, path, hosts);
+    }
+
+    private synchronized Session append(String name, String mobile, 
+            LocalDate date, String path, Collection<String> hosts) 
+                                                        throws IOException {
+        if (channel == null) {
+            throw new IOException("The capture history is not open.");
+        }
+        Session session = new Session(nextId, System.currentTimeMillis(), 
+                clean(name), clean(mobile), date, clean(path), 
+                Collections.unmodifiableSet(new TreeSet<>(hosts)));
+        String line = String.join("\t", String.valueOf(session.id), 
+                String.valueOf(session.recorded), session.name, 
+                session.mobile, session.date.toString(), session.path, 
+                String.join(",", session.hosts)) + "\n";
+        ByteBuffer bytes = ByteBuffer.wrap(
+                                    line.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+        index(session);
+        return session;
+    }
+
+    private void index(Session session) {
+        sessions.put(session.id, session);
+        nextId = Math.max(nextId, session.id + 1);
+        add(byName, nameKey(session.name), session);
+        add(byMobile, mobileKey(session.mobile), session);
+        add(byDate, session.date, session);
+        add(byPath, session.path, session);
+        for (String host : session.hosts) {
+            byHost.computeIfAbsent(host, (key) -> new ArrayList<>())
+                                                            .add(session);
+        }
+    }
+
+    private static <K> void add(Map<K, List<Session>> index, K key, 
+                                                        Session session) {
+        index.computeIfAbsent(key, (unused) -> new ArrayList<>())
+                                                            .add(session);
+    }
+
+    /**
+     * This function finds the sessions that match every criterion of the
+     * query. The candidates are taken from the index of the first
+     * criterion given, in the order mobile, name, hosts, path, date, and
+     * the other criteria are checked against each candidate.
+     * 
+     * @param query the criteria to match.
+     * @return the matching sessions, newest first, up to the query's limit.
+     */
+    public synchronized List<Session> search(Query query) {
+        String name = query.name == null ? null : nameKey(query.name);
+        String mobile = query.mobile == null ? null : mobileKey(query.mobile);
+        if (mobile != null && mobile.isEmpty()) {
+            mobile = null;
+        }
+        ArrayList<Predicate<Session>> filters = new ArrayList<>();
+        Collection<Session> candidates = null;
+        if (mobile != null) {
+            candidates = flatten(prefix(byMobile, mobile));
+        }
+        if (name != null) {
+            String prefix = name;
+            if (candidates == null) {
+                candidates = flatten(prefix(byName, prefix));
+            } else {
+                filters.add((session) -> 
+                            nameKey(session.name).startsWith(prefix));
+            }
+        }
+        if (!query.hosts.isEmpty()) {
+            if (candidates == null) {
+                candidates = hosts(query.hosts);
+            } else {
+                filters.add((session) -> 
+                            session.hosts.containsAll(query.hosts));
+            }
+        }
+        if (query.path != null) {
+            if (candidates == null) {
+                candidates = flatten(prefix(byPath, query.path));
+            } else {
+                filters.add((session) -> 
+                            session.path.startsWith(query.path));
+            }
+        }
+        if (query.from != null || query.to != null) {
+            LocalDate from = query.from == null ? LocalDate.MIN : query.from;
+            LocalDate to = query.to == null ? LocalDate.MAX : query.to;
+            if (candidates == null) {
+                candidates = from.isAfter(to) ? Collections.emptyList() 
+                        : flatten(byDate.subMap(from, true, to, true));
+            } else {
+                filters.add((session) -> !session.date.isBefore(from) 
+                                            && !session.date.isAfter(to));
+            }
+        }
+        if (candidates == null) {
+            candidates = sessions.values();
+        }
+        ArrayList<Session> found = new ArrayList<>();
+        for (Session session : candidates) {
+            if (filters.stream().allMatch((filter) -> filter.test(session))) {
+                found.add(session);
+            }
+        }
+        found.sort(NEWEST_FIRST);
+        return found.size() > query.limit 
+                ? new ArrayList<>(found.subList(0, query.limit)) : found;
+    }
+
+    /**
+     * This function returns the sessions every one of the given hosts took
+     * part in, starting from the host with the fewest sessions.
+     */
+    private Collection<Session> hosts(Set<String> hosts) {
+        List<Session> smallest = null;
+        for (String host : hosts) {
+            List<Session> took = byHost.getOrDefault(host, 
+                                                Collections.emptyList());
+            if (smallest == null || took.size() < smallest.size()) {
+                smallest = took;
+            }
+        }
+        ArrayList<Session> found = new ArrayList<>();
+        for (Session session : smallest) {
+            if (session.hosts.containsAll(hosts)) {
+                found.add(session);
+            }
+        }
+        return found;
+    }
+
+    private static <K> Collection<Session> flatten(
+                                    Map<K, List<Session>> matches) {
+        ArrayList<Session> found = new ArrayList<>();
+        matches.values().forEach(found::addAll);
+        return found;
+    }
+
+    private static NavigableMap<String, List<Session>> prefix(
+                    TreeMap<String, List<Session>> index, String prefix) {
+        return index.subMap(prefix, true, prefix + Character.MAX_VALUE, 
+                                                                    false);
+    }
+
+    private static String nameKey(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String mobileKey(String mobile) {
+        return mobile.replaceAll("[^0-9]", "");
+    }
+
+    private static String clean(String field) {
+        return field == null ? "" : field.replaceAll("[\t\r\n]", " ");
+    }
+
+    /**
+     * @return the number of captures in the history.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * A query holds the criteria of a search. Criteria left unset match
+     * every session.
+     */
+    public static class Query {
+        
+        private String name;
+        private String mobile;
+        private LocalDate from;
+        private LocalDate to;
+        private String path;
+        private final TreeSet<String> hosts = new TreeSet<>();
+        private int limit = Integer.MAX_VALUE;
+
+        /**
+         * @param prefix the start of the client's name, in any case.
+         * @return this query.
+         */
+        public Query name(String prefix) {
+            this.name = prefix;
+            return this;
+        }
+
+        /**
+         * @param prefix the start of the client's mobile number; anything
+         *               but digits is ignored.
+         * @return this query.
+         */
+        public Query mobile(String prefix) {
+            this.mobile = prefix;
+            return this;
+        }
+
+        /**
+         * @param from the earliest date, or null for no bound.
+         * @param to the latest date, or null for no bound.
+         * @return this query.
+         */
+        public Query dates(LocalDate from, LocalDate to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * @param prefix the start of the save location.
+         * @return this query.
+         */
+        public Query path(String prefix) {
+            this.path = prefix;
+            return this;
+        }
+
+        /**
+         * @param addresses hosts that must all have taken part.
+         * @return this query.
+         */
+        public Query hosts(Collection<String> addresses) {
+            hosts.addAll(addresses);
+            return this;
+        }
+
+        /**
+         * @param limit the most sessions to return.
+         * @return this query.
+         */
+        public Query limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+    }
+
+    /**
+     * A session is one finished capture, as recorded in the history.
+     */
+    public static class Session {
+        
+        private final long id;
+        private final long recorded;
+        private final String name;
+        private final String mobile;
+        private final LocalDate date;
+        private final String path;
+        private final Set<String> hosts;
+
+        Session(long id, long recorded, String name, String mobile, 
+                        LocalDate date, String path, Set<String> hosts) {
+            this.id = id;
+            this.recorded = recorded;
+            this.name = name;
+            this.mobile = mobile;
+            this.date = date;
+            this.path = path;
+            this.hosts = hosts;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return the time the capture finished, in milliseconds since the
+         *         epoch.
+         */
+        public long getRecorded() {
+            return recorded;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMobile() {
+            return mobile;
+        }
+
+        public LocalDate getDate() {
+            return date;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the directory the session's images were saved to.
+         */
+        public Path getSessionPath() {
+            return Paths.get(path, name + "_" + date);
+        }
+
+        public Set<String> getHosts() {
+            return hosts;
+        }
+    }
+    
+}
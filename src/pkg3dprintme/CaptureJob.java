@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A capture job is one customer's capture as it moves through the capture
+ * queue. It records the customer details and, as the capture runs, which
+ * hosts were triggered, which have fired, which images have arrived and
+ * which hosts are done, so that an interrupted job can be finished from
+ * where it stopped.
+ *
+ * @author Kieran
+ */
+public class CaptureJob {
+    
+    private final long id;
+    private final String name;
+    private final String mobile;
+    private final LocalDate date;
+    private final String path;
+    private final Set<String> triggered;
+    private final ConcurrentHashMap<String, Long> shutters;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> images;
+    private final Set<String> completed;
+    private final CompletableFuture<CaptureJob> completion;
+    private volatile long trigger;
+    private volatile CaptureReport report;
+    private volatile boolean resumed;
+
+    public CaptureJob(long id, String name, String mobile, LocalDate date, 
+                                                            String path) {
+        this.id = id;
+        this.name = name;
+        this.mobile = mobile;
+        this.date = date;
+        this.path = path;
+        triggered = ConcurrentHashMap.newKeySet();
+        shutters = new ConcurrentHashMap<>();
+        images = new ConcurrentHashMap<>();
+        completed = ConcurrentHashMap.newKeySet();
+        completion = new CompletableFuture<>();
+    }
+
+    void triggered(long trigger, Collection<String> addresses) {
+        triggered.addAll(addresses);
+        this.trigger = trigger;
+    }
+
+    void shutterFired(String address, long shutter) {
+        shutters.put(address, shutter);
+    }
+
+    void imageReceived(String address, int index, long length) {
+        images.computeIfAbsent(address, (key) -> new ConcurrentHashMap<>())
+                .put(index, length);
+    }
+
+    void hostCompleted(String address) {
+        completed.add(address);
+    }
+
+    void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    void complete(CaptureReport report) {
+        this.report = report;
+        completion.complete(this);
+    }
+
+    void fail(Exception e) {
+        completion.completeExceptionally(e);
+    }
+
+    /**
+     * @return the host shutter time of every host that was triggered or
+     *         fired but has not yet delivered all of its images, by
+     *         address. The shutter time is 0 for a host whose reply was
+     *         never read; its capture is known by the trigger id alone.
+     */
+    public Map<String, Long> getPending() {
+        HashMap<String, Long> pending = new HashMap<>();
+        triggered.forEach((address) -> pending.put(address, 0L));
+        pending.putAll(shutters);
+        pending.keySet().removeAll(completed);
+        return pending;
+    }
+
+    /**
+     * @return the number of images each host has delivered in full, 
+     *         counting from the first, by address. A resumed transfer
+     *         starts at the image after these.
+     */
+    public Map<String, Integer> getDelivered() {
+        HashMap<String, Integer> delivered = new HashMap<>();
+        images.forEach((address, received) -> {
+            int count = 0;
+            while (received.containsKey(count)) {
+                count++;
+            }
+            delivered.put(address, count);
+        });
+        return delivered;
+    }
+
+    /**
+     * @return true once the trigger has been sent or any host has fired,
+     *         after which the job must be finished by fetching rather than
+     *         by capturing again.
+     */
+    public boolean hasFired() {
+        return trigger != 0 || !triggered.isEmpty() || !shutters.isEmpty();
+    }
+
+    /**
+     * @return the id of the trigger that fired the capture, or 0 if it is
+     *         not known.
+     */
+    public long getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * @return the addresses of the hosts that were triggered or have
+     *         fired, in order.
+     */
+    public Set<String> getHosts() {
+        TreeSet<String> hosts = new TreeSet<>(triggered);
+        hosts.addAll(shutters.keySet());
+        return hosts;
+    }
+
+    public boolean isCompleted(String address) {
+        return completed.contains(address);
+    }
+
+    /**
+     * @param address the address of a host.
+     * @return the length of each image received from the host, by index.
+     */
+    public Map<Integer, Long> getImages(String address) {
+        Map<Integer, Long> received = images.get(address);
+        return received == null ? new HashMap<>() : received;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMobile() {
+        return mobile;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the shutter report, or null if the job has not finished or
+     *         was resumed after a restart, when the clock estimates of the
+     *         original capture are no longer known.
+     */
+    public CaptureReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return true if the job was read back from the journal on start-up.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return a future completed with this job once it has finished, or
+     *         completed exceptionally if it has failed.
+     */
+    public CompletableFuture<CaptureJob> getCompletion() {
+        return completion;
+    }
+    
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The capture journal is an append-only record of every capture job and
+ * its progress, written ahead of the work it describes so that a crash at
+ * any point leaves enough on disk to finish the job. Each record is one
+ * line of tab separated fields:
+ *
+ * <pre>
+ *   SUBMIT  id name mobile date path
+ *   TRIGGER id trigger address,...
+ *   SHUTTER id address shutter
+ *   IMAGE   id address index length
+ *   HOST    id address
+ *   DONE    id
+ *   FAILED  id message
+ *   NEXT    id
+ * </pre>
+ *
+ * The TRIGGER record names every host the trigger is sent to, and is
+ * written before it is sent, so a job interrupted at any point after the
+ * trigger is finished by fetching from all of those hosts, even those
+ * whose replies were never read.
+ *
+ * Every record but IMAGE is forced to the disk before the call returns.
+ * The transfer threads record their progress at once, so forces are
+ * shared: a thread that needs its record on disk waits for a force that
+ * began after the record was written, and one force covers every record
+ * written before it, whichever thread wrote them. IMAGE records are
+ * written but not forced; they reach the disk with the next SHUTTER or
+ * HOST record, or when the journal closes. An IMAGE record lost in a
+ * crash only means that image is fetched again, and the archive keeps a
+ * single copy of it.
+ *
+ * A line cut short by a crash is ignored when the journal is read back.
+ * On open, the journal is compacted down to the records of the jobs that
+ * have not finished, after a NEXT record holding the id the next job
+ * will be given, so that ids are never handed out twice even once the
+ * jobs that had them are gone from the journal.
+ *
+ * @author Kieran
+ */
+class CaptureJournal {
+    
+    private final Path path;
+    private final Object forceLock = new Object();
+    private FileChannel channel;
+    private long nextId;
+    private long written;
+    private long forced;
+
+    public CaptureJournal(Path path) {
+        this.path = path;
+        nextId = 1;
+    }
+
+    /**
+     * This function reads the journal back, compacts it, and opens it for
+     * appending.
+     * 
+     * @return the jobs that were submitted but never finished, in order.
+     * @throws IOException 
+     */
+    public synchronized List<CaptureJob> open() throws IOException {
+        LinkedHashMap<Long, CaptureJob> jobs = new LinkedHashMap<>();
+        LinkedHashMap<Long, List<String>> records = new LinkedHashMap<>();
+        if (Files.exists(path)) {
+            String journal = new String(Files.readAllBytes(path), 
+                                                StandardCharsets.UTF_8);
+            int end = journal.lastIndexOf('\n') + 1;
+            for (String line : journal.substring(0, end).split("\n")) {
+                if (!line.isEmpty()) {
+                    replay(line, jobs, records);
+                }
+            }
+        }
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("NEXT\t" + nextId);
+        records.values().forEach(lines::addAll);
+        Files.write(compacted, lines, StandardCharsets.UTF_8);
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING,
+                                        StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, 
+                                            StandardOpenOption.APPEND);
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * This function applies one record to the jobs being read back. Jobs
+     * that finished are dropped along with their records.
+     */
+    private void replay(String line, LinkedHashMap<Long, CaptureJob> jobs,
+                    LinkedHashMap<Long, List<String>> records) {
+        String[] fields = line.split("\t", -1);
+        long id;
+        try {
+            id = Long.parseLong(fields[1]);
+            if ("NEXT".equals(fields[0])) {
+                nextId = Math.max(nextId, id);
+                return;
+            }
+            nextId = Math.max(nextId, id + 1);
+            if ("SUBMIT".equals(fields[0])) {
+                jobs.put(id, new CaptureJob(id, fields[2], fields[3], 
+                        LocalDate.parse(fields[4]), fields[5]));
+                records.put(id, new ArrayList<>());
+            }
+            CaptureJob job = jobs.get(id);
+            if (job == null) {
+                return;
+            }
+            switch (fields[0]) {
+                case "TRIGGER":
+                    job.triggered(Long.parseLong(fields[2]), 
+                                    Arrays.asList(fields[3].split(",")));
+                    break;
+                case "SHUTTER":
+                    job.shutterFired(fields[2], Long.parseLong(fields[3]));
+                    break;
+                case "IMAGE":
+                    job.imageReceived(fields[2], Integer.parseInt(fields[3]),
+                                                Long.parseLong(fields[4]));
+                    break;
+                case "HOST":
+                    job.hostCompleted(fields[2]);
+                    break;
+                case "DONE":
+                case "FAILED":
+                    jobs.remove(id);
+                    records.remove(id);
+                    return;
+                default:
+                    break;
+            }
+            records.get(id).add(line);
+        } catch (RuntimeException e) {
+            System.out.println("Skipping unreadable journal record: " + line);
+        }
+    }
+
+    /**
+     * @return the id to give the next job submitted.
+     */
+    public synchronized long nextId() {
+        return nextId++;
+    }
+
+    public void submitted(CaptureJob job) throws IOException {
+        append(true, "SUBMIT", job.getId(), job.getName(), job.getMobile(), 
+                                    job.getDate(), job.getPath());
+    }
+
+    public void triggered(CaptureJob job, long trigger, 
+                        Collection<String> addresses) throws IOException {
+        append(true, "TRIGGER", job.getId(), trigger, 
+                                            String.join(",", addresses));
+    }
+
+    public void shutterFired(CaptureJob job, String address, long shutter)
+                                                        throws IOException {
+        append(true, "SHUTTER", job.getId(), address, shutter);
+    }
+
+    public void imageReceived(CaptureJob job, String address, int index,
+                                        long length) throws IOException {
+        append(false, "IMAGE", job.getId(), address, index, length);
+    }
+
+    public void hostCompleted(CaptureJob job, String address) 
+                                                        throws IOException {
+        append(true, "HOST", job.getId(), address);
+    }
+
+    public void completed(CaptureJob job) throws IOException {
+        append(true, "DONE", job.getId());
+    }
+
+    public void failed(CaptureJob job, String message) throws IOException {
+        append(true, "FAILED", job.getId(), message);
+    }
+
+    public void close() throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                return;
+            }
+            sequence = written;
+        }
+        sync(sequence);
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    /**
+     * This function writes a record, and if it must be durable, waits for
+     * it to be forced to the disk. Tabs and line breaks inside fields are
+     * replaced with spaces so that every record stays on one line.
+     */
+    private void append(boolean durable, String type, Object... fields) 
+                                                        throws IOException {
+        StringBuilder record = new StringBuilder(type);
+        for (Object field : fields) {
+            record.append('\t').append(
+                    String.valueOf(field).replaceAll("[\t\r\n]", " "));
+        }
+        record.append('\n');
+        ByteBuffer bytes = ByteBuffer.wrap(
+                record.toString().getBytes(StandardCharsets.UTF_8));
+        long sequence;
+        synchronized (this) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            sequence = ++written;
+        }
+        if (durable) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * This function returns once the given record is on disk. Only one
+     * force runs at a time, and it covers every record written before it
+     * started, so threads waiting behind it usually find their records
+     * already forced.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (forceLock) {
+            if (forced >= sequence) {
+                return;
+            }
+            long covered;
+            synchronized (this) {
+                covered = written;
+            }
+            channel.force(false);
+            forced = covered;
+        }
+    }
+    
+}
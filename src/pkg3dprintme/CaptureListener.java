@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.List;
+
+/**
+ * A capture listener is told about the progress of a capture as it
+ * happens. Events arrive on the transfer threads, one thread per host, so
+ * a listener that updates the interface must hand the work to the
+ * interface thread itself.
+ *
+ * @author Kieran
+ */
+public interface CaptureListener {
+    
+    /** A listener that ignores every event. */
+    CaptureListener NONE = new CaptureListener() { };
+
+    /**
+     * Called before a trigger is sent, with every host it is sent to. A
+     * host may fire on the trigger before its reply is read, so the
+     * trigger id is what identifies the capture on those hosts until then.
+     * 
+     * @param trigger the trigger id.
+     * @param hosts the image servers being triggered.
+     */
+    default void triggered(long trigger, List<Host> hosts) {
+    }
+
+    /**
+     * Called when a host reports that its shutter has fired, before any of
+     * its images arrive. The shutter time identifies the capture on the
+     * host, and can be used to fetch its images again.
+     * 
+     * @param host the image server that fired.
+     * @param shutter the shutter time on the host's clock.
+     */
+    default void shutterFired(Host host, long shutter) {
+    }
+
+    /**
+     * Called once an image has been received in full, has passed its end
+     * to end check and has been acknowledged.
+     * 
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @param length the size of the image, in bytes.
+     */
+    default void imageReceived(Host host, int index, long length) {
+    }
+
+    /**
+     * Called once every image from a host has been received.
+     * 
+     * @param host the image server that has finished.
+     */
+    default void hostCompleted(Host host) {
+    }
+    
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The capture metrics record how long each stage of the capture pipeline
+ * takes, for the rig as a whole and for each host, so that a slow Pi or a
+ * slow stage stands out. Every value is recorded twice: into the totals,
+ * kept since start-up, and into the current session, which is restarted
+ * at the start of each capture and written beside its images as
+ * metrics.csv. Both are published over JMX.
+ *
+ * @author Kieran
+ */
+class CaptureMetrics implements CaptureMetricsMXBean {
+    
+    /**
+     * The metrics recorded. Times are recorded in nanoseconds and rates in
+     * bytes per second; the scale converts them to the display unit.
+     */
+    enum Metric {
+        DISCOVERY("discovery", "ms", 1e6),
+        SYNC_RTT("sync.rtt", "ms", 1e6),
+        SYNC_OFFSET("sync.offset", "ms", 1e6),
+        TRIGGER_SKEW("trigger.skew", "ms", 1e6),
+        TRIGGER_FANOUT("trigger.fanout", "ms", 1e6),
+        TRANSFER_TTFB("transfer.ttfb", "ms", 1e6),
+        TRANSFER_RATE("transfer.rate", "MB/s", 1e6),
+        STORE_WRITE("store.write", "ms", 1e6),
+        PROCESS_IMAGE("process.image", "ms", 1e6),
+        PROCESS_TAIL("process.tail", "ms", 1e6);
+        
+        private final String name;
+        private final String unit;
+        private final double scale;
+
+        Metric(String name, String unit, double scale) {
+            this.name = name;
+            this.unit = unit;
+            this.scale = scale;
+        }
+    }
+    
+    private final ConcurrentHashMap<Key, Histogram> totals;
+    private final ConcurrentHashMap<Key, Long> totalGauges;
+    private volatile ConcurrentHashMap<Key, Histogram> session;
+    private volatile ConcurrentHashMap<Key, Long> sessionGauges;
+    private ObjectName name;
+
+    public CaptureMetrics() {
+        totals = new ConcurrentHashMap<>();
+        totalGauges = new ConcurrentHashMap<>();
+        session = new ConcurrentHashMap<>();
+        sessionGauges = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * This function publishes the metrics over JMX. A failure is reported
+     * but is not fatal, since the metrics still work without JMX.
+     * 
+     * @param qualifier distinguishes this instance from others in the
+     *                  same JVM.
+     */
+    public synchronized void register(String qualifier) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            name = new ObjectName("pkg3dprintme:type=CaptureMetrics,name=" 
+                                + ObjectName.quote(qualifier));
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Metrics not published over JMX: " + e);
+            name = null;
+        }
+    }
+
+    public synchronized void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone.
+            }
+            name = null;
+        }
+    }
+
+    /**
+     * This function starts a new session, leaving the totals as they are.
+     */
+    public void startSession() {
+        session = new ConcurrentHashMap<>();
+        sessionGauges = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param metric the metric recorded.
+     * @param host the host the value is for, or null for the whole rig.
+     * @param value the value, in nanoseconds or bytes per second.
+     */
+    public void record(Metric metric, Host host, long value) {
+        Key key = new Key(metric, host);
+        totals.computeIfAbsent(key, (k) -> new Histogram()).record(value);
+        session.computeIfAbsent(key, (k) -> new Histogram()).record(value);
+    }
+
+    /**
+     * This function sets a metric that has a current value rather than a
+     * distribution, such as a host's clock offset, which may be negative.
+     * 
+     * @param metric the metric set.
+     * @param host the host the value is for, or null for the whole rig.
+     * @param value the value, in nanoseconds or bytes per second.
+     */
+    public void set(Metric metric, Host host, long value) {
+        Key key = new Key(metric, host);
+        totalGauges.put(key, value);
+        sessionGauges.put(key, value);
+    }
+
+    /**
+     * This function writes the session's metrics as CSV.
+     * 
+     * @param file the file to write.
+     * @throws IOException 
+     */
+    public void writeCsv(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, toCsv(getSession()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public List<MetricSnapshot> getTotals() {
+        return snapshot(totals, totalGauges);
+    }
+
+    @Override
+    public List<MetricSnapshot> getSession() {
+        return snapshot(session, sessionGauges);
+    }
+
+    @Override
+    public String getTotalsCsv() {
+        return toCsv(getTotals());
+    }
+
+    @Override
+    public void reset() {
+        totals.clear();
+        totalGauges.clear();
+    }
+
+    private static List<MetricSnapshot> snapshot(
+            Map<Key, Histogram> histograms, Map<Key, Long> gauges) {
+        ArrayList<MetricSnapshot> snapshots = new ArrayList<>();
+        histograms.forEach((key, histogram) -> {
+            double scale = key.metric.scale;
+            snapshots.add(new MetricSnapshot(key.metric.name, key.host, 
+                    key.metric.unit, histogram.getCount(), 
+                    histogram.getMean() / scale, 
+                    histogram.getMin() / scale, 
+                    histogram.getPercentile(0.5) / scale, 
+                    histogram.getPercentile(0.9) / scale, 
+                    histogram.getPercentile(0.99) / scale, 
+                    histogram.getMax() / scale));
+        });
+        gauges.forEach((key, value) -> {
+            double scaled = value / key.metric.scale;
+            snapshots.add(new MetricSnapshot(key.metric.name, key.host, 
+                    key.metric.unit, 1, scaled, scaled, scaled, scaled, 
+                                                    scaled, scaled));
+        });
+        snapshots.sort(Comparator.comparing(MetricSnapshot::getMetric)
+                .thenComparing(MetricSnapshot::getHost));
+        return snapshots;
+    }
+
+    private static String toCsv(List<MetricSnapshot> snapshots) {
+        StringBuilder csv = new StringBuilder(MetricSnapshot.CSV_HEADER);
+        csv.append('\n');
+        for (MetricSnapshot snapshot : snapshots) {
+            csv.append(snapshot.toCsv()).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * A key names one metric for one host.
+     */
+    private static class Key {
+        
+        private final Metric metric;
+        private final String host;
+
+        Key(Metric metric, Host host) {
+            this.metric = metric;
+            this.host = host == null ? "" : host.getAddress();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return metric == key.metric && host.equals(key.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * metric.hashCode() + host.hashCode();
+        }
+    }
+    
+}
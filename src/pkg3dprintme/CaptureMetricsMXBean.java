@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.List;
+
+/**
+ * The management interface of the capture metrics, published over JMX as
+ * {@code pkg3dprintme:type=CaptureMetrics}.
+ *
+ * @author Kieran
+ */
+public interface CaptureMetricsMXBean {
+    
+    /**
+     * @return every metric since start-up or the last reset.
+     */
+    List<MetricSnapshot> getTotals();
+    
+    /**
+     * @return every metric of the current or most recent session.
+     */
+    List<MetricSnapshot> getSession();
+    
+    /**
+     * @return getTotals as CSV, with a header line.
+     */
+    String getTotalsCsv();
+    
+    /**
+     * This function clears the totals.
+     */
+    void reset();
+    
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * The capture queue runs capture jobs one after another on a worker
+ * thread, so customers can be queued while earlier captures are still
+ * transferring. Every job and its progress is written to the capture
+ * journal before it is acted on; after a restart, jobs that never finished
+ * are read back and resumed ahead of any new ones. A resumed job whose
+ * hosts had already fired is finished by fetching the images the hosts
+ * still hold, rather than by taking the photographs again, starting from
+ * the first image each host had not delivered. A job that finishes is
+ * recorded in the capture history, so it can be found again later.
+ * 
+ * The queue applies back-pressure in two places: submit refuses new jobs
+ * while the queue is full, which happens when the network falls behind,
+ * and the worker holds the next job until its save location has enough
+ * free space.
+ *
+ * @author Kieran
+ */
+public class CaptureQueue {
+    
+    private static final long MIN_FREE_SPACE = 512L * 1024 * 1024;
+    private static final int DISK_WAIT = 5000;
+    
+    private final NetworkController controller;
+    private final CaptureJournal journal;
+    private final CaptureHistory history;
+    private final CaptureListener listener;
+    private final int capacity;
+    private final BlockingDeque<CaptureJob> jobs;
+    private Thread worker;
+
+    /**
+     * @param controller the network controller captures are run on.
+     * @param journalPath the file the journal is kept in.
+     * @param history the history finished jobs are recorded in.
+     * @param capacity the number of jobs that may wait at once.
+     * @param listener a listener told of the progress of every job.
+     */
+    public CaptureQueue(NetworkController controller, Path journalPath, 
+            CaptureHistory history, int capacity, CaptureListener listener) {
+        this.controller = controller;
+        this.journal = new CaptureJournal(journalPath);
+        this.history = history;
+        this.listener = listener;
+        this.capacity = capacity;
+        jobs = new LinkedBlockingDeque<>();
+    }
+
+    /**
+     * This function reads back the journal and starts the worker. Jobs
+     * that were interrupted are queued first, in their original order,
+     * even if that overfills the queue.
+     * 
+     * @return the jobs being resumed.
+     * @throws IOException 
+     */
+    public synchronized List<CaptureJob> start() throws IOException {
+        List<CaptureJob> resumed = journal.open();
+        for (int i = resumed.size() - 1; i >= 0; i--) {
+            resumed.get(i).setResumed(true);
+            jobs.addFirst(resumed.get(i));
+        }
+        worker = new Thread(this::work, "capture-queue");
+        worker.setDaemon(true);
+        worker.start();
+        return resumed;
+    }
+
+    /**
+     * This function stops the worker. A job in progress is interrupted and
+     * stays in the journal, so it is resumed on the next start.
+     * 
+     * @throws IOException 
+     */
+    public synchronized void stop() throws IOException {
+        if (worker != null) {
+            worker.interrupt();
+        }
+        journal.close();
+    }
+
+    /**
+     * This function records a new job in the journal and queues it.
+     * 
+     * @param name the name of the client/job.
+     * @param mobile the mobile number of the client.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @return the queued job, or null if the queue is full.
+     * @throws IOException if the job could not be journaled.
+     * @throws IllegalArgumentException if the job has no date.
+     */
+    public synchronized CaptureJob submit(String name, String mobile, 
+                            LocalDate date, String path) throws IOException {
+        if (date == null) {
+            throw new IllegalArgumentException("A capture must have a date.");
+        }
+        if (jobs.size() >= capacity) {
+            return null;
+        }
+        CaptureJob job = new CaptureJob(journal.nextId(), name, mobile, 
+                                                            date, path);
+        journal.submitted(job);
+        jobs.add(job);
+        return job;
+    }
+
+    /**
+     * @return the number of jobs waiting to run.
+     */
+    public int getPending() {
+        return jobs.size();
+    }
+
+    /**
+     * The work function runs on the worker thread for as long as the
+     * queue is started, taking jobs in order.
+     */
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                CaptureJob job = jobs.take();
+                awaitSpace(job);
+                run(job);
+            }
+        } catch (InterruptedException e) {
+            // The queue has been stopped.
+        }
+    }
+
+    /**
+     * The awaitSpace function holds the worker until the job's save
+     * location has room for another capture.
+     */
+    private void awaitSpace(CaptureJob job) throws InterruptedException {
+        Path path = Paths.get(job.getPath()).toAbsolutePath();
+        while (path != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+        while (path != null) {
+            try {
+                long free = Files.getFileStore(path).getUsableSpace();
+                if (free >= MIN_FREE_SPACE) {
+                    return;
+                }
+                System.out.println(String.format(
+                        "Waiting for space at %s: %d MB free.", 
+                        path, free >> 20));
+            } catch (IOException e) {
+                return;
+            }
+            Thread.sleep(DISK_WAIT);
+        }
+    }
+
+    /**
+     * The run function runs a single job, journaling each step before
+     * passing it on to the listener. A job that has not fired is captured;
+     * a resumed job that has fired is finished by fetching the images of
+     * every host it triggered that had not completed, and fails if any of
+     * them cannot be reached.
+     */
+    private void run(CaptureJob job) throws InterruptedException {
+        CaptureListener journaling = new CaptureListener() {
+            @Override
+            public void triggered(long trigger, List<Host> hosts) {
+                List<String> addresses = new ArrayList<>();
+                hosts.forEach((host) -> addresses.add(host.getAddress()));
+                job.triggered(trigger, addresses);
+                record(() -> journal.triggered(job, trigger, addresses));
+                listener.triggered(trigger, hosts);
+            }
+
+            @Override
+            public void shutterFired(Host host, long shutter) {
+                job.shutterFired(host.getAddress(), shutter);
+                record(() -> journal.shutterFired(job, host.getAddress(),
+                                                                shutter));
+                listener.shutterFired(host, shutter);
+            }
+
+            @Override
+            public void imageReceived(Host host, int index, long length) {
+                job.imageReceived(host.getAddress(), index, length);
+                record(() -> journal.imageReceived(job, host.getAddress(), 
+                                                        index, length));
+                listener.imageReceived(host, index, length);
+            }
+
+            @Override
+            public void hostCompleted(Host host) {
+                job.hostCompleted(host.getAddress());
+                record(() -> journal.hostCompleted(job, host.getAddress()));
+                listener.hostCompleted(host);
+            }
+        };
+        try {
+            CaptureReport report = null;
+            if (job.hasFired()) {
+                controller.fetch(job.getName(), job.getDate(), job.getPath(),
+                        job.getTrigger(), job.getPending(), 
+                        job.getDelivered(), journaling);
+            } else {
+                report = controller.capture(job.getName(), job.getDate(), 
+                                            job.getPath(), journaling);
+            }
+            journal.completed(job);
+            try {
+                history.record(job);
+            } catch (IOException e) {
+                System.out.println("Capture " + job.getId() 
+                        + " not recorded in the history: " + e.getMessage());
+            }
+            job.complete(report);
+        } catch (Exception e) {
+            // An interrupted job stays in the journal and is resumed on the
+            // next start; any other failure ends the job.
+            if (e instanceof InterruptedException 
+                    || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            System.out.println(String.format("Capture %d for %s failed: %s",
+                                            job.getId(), job.getName(), e));
+            try {
+                journal.failed(job, String.valueOf(e.getMessage()));
+            } catch (IOException again) {
+                System.out.println("Capture " + job.getId() 
+                        + " not recorded as failed in the journal: " 
+                        + again.getMessage());
+            }
+            job.fail(e);
+        }
+    }
+
+    /**
+     * The record function writes a journal record from a listener, where
+     * checked exceptions cannot be thrown. A job whose progress cannot be
+     * journaled is stopped, since it could no longer be resumed safely.
+     */
+    private void record(JournalRecord record) {
+        try {
+            record.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface JournalRecord {
+        void write() throws IOException;
+    }
+    
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A capture report records when each ImageServer actually fired its
+ * shutter, mapped back onto the client's clock, and summarises how far
+ * apart the shutters were. All times are in nanoseconds.
+ *
+ * @author Kieran
+ */
+public class CaptureReport {
+    
+    private final long target;
+    private final ConcurrentHashMap<Host, Long> shutters;
+
+    /**
+     * @param target the client time every shutter was meant to fire at.
+     */
+    public CaptureReport(long target) {
+        this.target = target;
+        shutters = new ConcurrentHashMap<>();
+    }
+
+    public void add(Host host, long shutter) {
+        shutters.put(host, shutter);
+    }
+
+    public Long get(Host host) {
+        return shutters.get(host);
+    }
+
+    public long getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the time between the earliest and the latest shutter.
+     */
+    public long getMaxSkew() {
+        if (shutters.isEmpty()) {
+            return 0;
+        }
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (long shutter : shutters.values()) {
+            first = Math.min(first, shutter);
+            last = Math.max(last, shutter);
+        }
+        return last - first;
+    }
+
+    /**
+     * @return the 99th percentile of each shutter's distance from the
+     * target time.
+     */
+    public long getP99Skew() {
+        if (shutters.isEmpty()) {
+            return 0;
+        }
+        long[] errors = shutters.values().stream()
+                .mapToLong((shutter) -> Math.abs(shutter - target))
+                .toArray();
+        Arrays.sort(errors);
+        int rank = (int) Math.ceil(0.99 * errors.length) - 1;
+        return errors[Math.max(0, rank)];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Shutter skew: max %.3f ms, p99 %.3f ms (%d hosts)",
+                getMaxSkew() / 1e6, getP99Skew() / 1e6, shutters.size());
+    }
+    
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection pool holds one warm HostConnection per ImageServer. Idle
+ * connections are pinged on every keep-alive so that they stay open and
+ * so that a dead connection is found and dropped before a capture needs
+ * it. Connections to hosts that have left the network are discarded.
+ *
+ * @author Kieran
+ */
+class ConnectionPool {
+    
+    private static final int KEEPALIVE_INTERVAL = 5000;
+    private static final int KEEPALIVE_TIMEOUT = 1000;
+    
+    private final int port;
+    private final BufferPool bufferPool;
+    private final ConcurrentHashMap<Host, HostConnection> connections;
+    private final ScheduledExecutorService keepAlive;
+
+    public ConnectionPool(int port) {
+        this.port = port;
+        bufferPool = new BufferPool(FrameChannel.MAX_PAYLOAD, 64);
+        connections = new ConcurrentHashMap<>();
+        keepAlive = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "keep-alive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepAlive.scheduleWithFixedDelay(this::check, KEEPALIVE_INTERVAL,
+                                KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param host an ImageServer.
+     * @return the pooled connection to the ImageServer.
+     */
+    public HostConnection get(Host host) {
+        return connections.computeIfAbsent(host, 
+                (key) -> new HostConnection(key, port, bufferPool));
+    }
+
+    /**
+     * The check function pings every open connection that has been idle
+     * for a keep-alive interval, and drops connections to hosts the
+     * registry has disconnected.
+     */
+    private void check() {
+        for (HostConnection connection : connections.values()) {
+            if (Host.DISCONNECTED.equals(connection.getHost().getStatus())) {
+                connections.remove(connection.getHost());
+                connection.close();
+            } else if (connection.isOpen() 
+                    && connection.getIdleTime() >= KEEPALIVE_INTERVAL) {
+                try {
+                    connection.callIfIdle(KEEPALIVE_TIMEOUT, (channel) -> {
+                        channel.writePing(System.nanoTime());
+                        return channel.expect(FrameChannel.PONG);
+                    });
+                } catch (Exception e) {
+                    // The connection has closed itself and will reconnect
+                    // on its next use.
+                }
+            }
+        }
+    }
+
+    /**
+     * This function closes every connection and stops the keep-alive.
+     */
+    public void close() {
+        keepAlive.shutdownNow();
+        connections.values().forEach(HostConnection::close);
+        connections.clear();
+    }
+    
+}
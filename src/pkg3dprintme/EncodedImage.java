@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * An encoded image holds the compressed bytes of one image exactly as the
+ * ImageServer sent them, spread over a list of pooled buffers. Nothing is
+ * decoded until someone asks for a stream over the bytes, and the buffers
+ * go back to their pool when the image is released.
+ *
+ * @author Kieran
+ */
+class EncodedImage {
+    
+    private final BufferPool pool;
+    private final ArrayList<ByteBuffer> segments;
+    private final long length;
+
+    private EncodedImage(BufferPool pool, ArrayList<ByteBuffer> segments, 
+                                                            long length) {
+        this.pool = pool;
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * This function reads exactly length bytes from the source into
+     * buffers taken from the pool.
+     * 
+     * @param pool the pool to take buffers from.
+     * @param source the channel positioned at the start of the image.
+     * @param length the number of bytes that make up the image.
+     * @return the encoded image.
+     * @throws IOException 
+     */
+    public static EncodedImage read(BufferPool pool, ReadableByteChannel source,
+                                            long length) throws IOException {
+        ArrayList<ByteBuffer> segments = new ArrayList<>();
+        long remaining = length;
+        try {
+            while (remaining > 0) {
+                ByteBuffer segment = pool.acquire();
+                segments.add(segment);
+                if (segment.capacity() > remaining) {
+                    segment.limit((int) remaining);
+                }
+                while (segment.hasRemaining()) {
+                    if (source.read(segment) < 0) {
+                        throw new IOException(String.format(
+                                "Image ended after %d of %d bytes.",
+                                length - remaining + segment.position(), length));
+                    }
+                }
+                segment.flip();
+                remaining -= segment.remaining();
+            }
+        } catch (IOException e) {
+            segments.forEach(pool::release);
+            throw e;
+        }
+        return new EncodedImage(pool, segments, length);
+    }
+
+    /**
+     * This function wraps bytes that are already in memory, such as an
+     * image mapped from a session container, without copying them. The
+     * buffer belongs to no pool, so releasing the image only forgets it.
+     * 
+     * @param data the image, from its position to its limit.
+     * @return the encoded image.
+     */
+    public static EncodedImage wrap(ByteBuffer data) {
+        ArrayList<ByteBuffer> segments = new ArrayList<>();
+        segments.add(data.slice());
+        return new EncodedImage(null, segments, data.remaining());
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return a stream over the encoded bytes, for decoding.
+     */
+    public InputStream openStream() {
+        return new InputStream() {
+            private int segment;
+            private ByteBuffer current = segments.isEmpty() 
+                    ? ByteBuffer.allocate(0) : segments.get(0).duplicate();
+
+            private boolean advance() {
+                while (!current.hasRemaining()) {
+                    if (++segment >= segments.size()) {
+                        return false;
+                    }
+                    current = segments.get(segment).duplicate();
+                }
+                return true;
+            }
+
+            @Override
+            public int read() {
+                return advance() ? current.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+                int count = Math.min(len, current.remaining());
+                current.get(b, off, count);
+                return count;
+            }
+        };
+    }
+
+    /**
+     * This function writes the encoded bytes to a channel.
+     * 
+     * @param target the channel to write to.
+     * @throws IOException 
+     */
+    public void writeTo(WritableByteChannel target) throws IOException {
+        for (ByteBuffer segment : segments) {
+            ByteBuffer data = segment.duplicate();
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+        }
+    }
+
+    /**
+     * This function returns the buffers to the pool. The image must not
+     * be used afterwards.
+     */
+    public void release() {
+        if (pool != null) {
+            segments.forEach(pool::release);
+        }
+        segments.clear();
+    }
+    
+}
@@ -16,9 +16,9 @@
  */
 package pkg3dprintme;
 
-import javafx.scene.image.Image;
 import java.io.File;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.ResourceBundle;
 import javafx.application.Platform;
@@ -29,12 +29,17 @@ import javafx.scene.control.DatePicker;
 import javafx.scene.control.TextField;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javafx.collections.ObservableList;
 import javafx.collections.FXCollections;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.stage.DirectoryChooser;
 
@@ -92,6 +97,29 @@ public class FXMLDocumentController implements Initializable {
            = new DirectoryChooser();
     private final ObservableList<Host> HOSTS_LIST
             = FXCollections.observableArrayList();
+    private static final PreviewCache PREVIEW_CACHE 
+            = new PreviewCache(64);
+    private static final CaptureHistory CAPTURE_HISTORY = new CaptureHistory(
+            Paths.get(System.getProperty("user.home"), ".3dprintme", "history.tsv"));
+    private static final int HISTORY_RESULTS = 10;
+    private static final CaptureQueue CAPTURE_QUEUE = new CaptureQueue(
+            NETWORK_CONTROLLER, 
+            Paths.get(System.getProperty("user.home"), ".3dprintme", "captures.journal"),
+            CAPTURE_HISTORY, 8, new CaptureListener() {
+                @Override
+                public void hostCompleted(Host host) {
+                    Platform.runLater(() -> LOG.add("Received images from " + host.getName()));
+                }
+            });
+    private static final long PREVIEW_TIMEOUT = 15000;
+    private static final ExecutorService PREVIEW_EXECUTOR
+            = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "preview");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private CompletableFuture<?> pendingPreview;
+    private CompletableFuture<Integer> historyLoad;
     
     /* -----------------------------
      * FXML method injection points.
@@ -121,16 +149,16 @@ public class FXMLDocumentController implements Initializable {
      * The captureButtonAction is an injected method which will be called
      * whenever the capture button on the interface is pressed. This function
      * commands the network controller to captures all images from all
-     * available image servers.
+     * available image servers. The capture is added to the capture queue
+     * and runs in the background, so the next customer can be entered
+     * straight away; each host is logged as it finishes, and the job is
+     * logged once it has completed or failed.
      * 
      * @author Kieran Hannigan
      * @param event the internal event which triggers this handler.
      */
     @FXML
     private void captureButtonAction(ActionEvent event) throws IOException {
-        nameTextField.setEditable(false);
-        mobileTextField.setEditable(false);
-        dateDatePicker.setEditable(false);
         String name = nameTextField.getText();
         LocalDate date = dateDatePicker.getValue();
         String mobile = mobileTextField.getText();
@@ -141,12 +169,63 @@ public class FXMLDocumentController implements Initializable {
                    "Mobile: " + mobile,
                    SEP
                    );
+        if (date == null) {
+            LOG.addAll("Error: Please choose the date of the capture.", SEP);
+            return;
+        }
         
         try {
-            NETWORK_CONTROLLER.capture(name, date, path);
-        } catch (Exception e) {
-            LOG.addAll("Error: Image capture failed. Please confirm that the ImageServers are available, and that a valid image directory is set.", SEP);
+            CaptureJob job = CAPTURE_QUEUE.submit(name, mobile, date, path);
+            if (job == null) {
+                LOG.addAll("Error: The capture queue is full. Please wait for the queued captures to finish.", SEP);
+                return;
+            }
+            LOG.addAll("Queued capture " + job.getId() + " (" + CAPTURE_QUEUE.getPending() + " waiting).", SEP);
+            logCompletion(job);
+        } catch (IOException e) {
+            LOG.addAll("Error: The capture could not be recorded in the capture journal.", SEP);
+        }
+    }
+    
+    /**
+     * The historyButtonAction is an injected method which will be called
+     * whenever the history button on the interface is pressed. This function
+     * searches the capture history for earlier captures of the customer
+     * entered, by the start of their name and of their mobile number, and
+     * logs the most recent of them with the directory they were saved to.
+     * 
+     * @param event the internal event which triggers this handler.
+     */
+    @FXML
+    private void historyButtonAction(ActionEvent event) {
+        String name = nameTextField.getText().trim();
+        String mobile = mobileTextField.getText().trim();
+        if (name.isEmpty() && mobile.isEmpty()) {
+            LOG.addAll("Enter a name or mobile number to search the capture history.", SEP);
+            return;
+        }
+        if (!historyLoad.isDone()) {
+            LOG.addAll("The capture history is still loading. Please try again in a moment.", SEP);
+            return;
+        }
+        if (historyLoad.isCompletedExceptionally()) {
+            LOG.addAll("Error: The capture history could not be read. Finished captures are not searchable.", SEP);
+            return;
         }
+        List<CaptureHistory.Session> sessions = CAPTURE_HISTORY.search(
+                new CaptureHistory.Query()
+                        .name(name.isEmpty() ? null : name)
+                        .mobile(mobile.isEmpty() ? null : mobile)
+                        .limit(HISTORY_RESULTS));
+        if (sessions.isEmpty()) {
+            LOG.addAll("No earlier captures found.", SEP);
+            return;
+        }
+        for (CaptureHistory.Session session : sessions) {
+            LOG.add(session.getDate() + "  " + session.getName() + "  " 
+                    + session.getMobile() + "  " + session.getSessionPath());
+        }
+        LOG.add(SEP);
     }
     
     /**
@@ -167,45 +246,80 @@ public class FXMLDocumentController implements Initializable {
     /**
      * The refreshHostTableButtonAction is an injected method which will be called
      * whenever the refresh button in the hosts section of the interface is pressed.
-     * This function commands the network controller to refresh its list of hosts,
-     * then updates the host table view.
+     * This function commands the network controller to refresh its list of hosts
+     * in the background, then updates the host table view.
      * 
      * @author Kieran Hannigan
      * @param event 
      */
     @FXML
     private void refreshHostTableButtonAction(ActionEvent event) {
-        try {
-            HOSTS_LIST.clear();
-            HOSTS_LIST.addAll(NETWORK_CONTROLLER.getHosts().getAll());
-        } catch (Exception e) {
-            LOG.addAll("Error: Host updating failed. Please ensure that the ImageServers are available.", SEP);
-        }
+        NETWORK_CONTROLLER.getHostsAsync()
+                .whenComplete((hostList, e) -> Platform.runLater(() -> {
+                    if (e == null) {
+                        HOSTS_LIST.setAll(hostList.getAll());
+                    } else {
+                        LOG.addAll("Error: Host updating failed. Please ensure that the ImageServers are available.", SEP);
+                    }
+                }));
     }
     
     /**
      * The refreshImagesButtonAction is an injected method which will be called
      * whenever the refresh button in the images section of the interface is pressed.
      * This function requests the images from the image server selected in 
-     * the host table.
+     * the host table. The images are decoded at the size of the preview
+     * quadrants on a preview thread of their own, so that decoding never
+     * holds up the network controller's threads, and kept in the preview
+     * cache so that a repeat request for the same host and capture skips
+     * the network. A request still in flight is cancelled by the next one.
      * 
      * @author Kieran Hannigan
      * @param event 
      */
     @FXML
     private void refreshImagesButton(ActionEvent event) {
-        try {
-            Host selected = hostTable.getSelectionModel().getSelectedItem();
-            ImageSet imageSet = NETWORK_CONTROLLER.shoot(selected);
-            ArrayList<Image> images = imageSet.get(selected.getAddress());
-            imageViewTopLeft.setImage(images.get(0));
-            imageViewTopLeft.setImage(images.get(1));
-            imageViewTopLeft.setImage(images.get(2));
-            imageViewTopLeft.setImage(images.get(3));
-        } catch(Exception e) {
-            LOG.addAll("Error: Image preview failed. Please ensure that the selected ImageServer is still connected and available.", SEP);
+        Host selected = hostTable.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            return;
+        }
+        long captureId = NETWORK_CONTROLLER.getCaptureId();
+        ArrayList<Image> cached = PREVIEW_CACHE.get(selected, captureId);
+        if (cached != null) {
+            showPreview(cached);
+            return;
+        }
+        ImageView[] views = getPreviewViews();
+        double width = views[0].getFitWidth();
+        double height = views[0].getFitHeight();
+        if (pendingPreview != null) {
+            pendingPreview.cancel(true);
         }
-        System.out.println(hostTable.getSelectionModel().getSelectedItem().getAddress());
+        CompletableFuture<ImageSet> preview 
+                = NETWORK_CONTROLLER.shootAsync(selected, PREVIEW_TIMEOUT);
+        pendingPreview = preview;
+        preview.thenApplyAsync((imageSet) -> {
+                    ArrayList<Image> thumbnails = new ArrayList<>();
+                    try {
+                        for (int i = 0; i < views.length; i++) {
+                            thumbnails.add(decode(imageSet.getEncoded(
+                                    selected.getAddress(), i), width, height));
+                        }
+                    } finally {
+                        imageSet.release();
+                    }
+                    PREVIEW_CACHE.put(selected, captureId, thumbnails);
+                    return thumbnails;
+                }, PREVIEW_EXECUTOR)
+                .whenComplete((thumbnails, e) -> Platform.runLater(() -> {
+                    if (e == null) {
+                        if (selected == hostTable.getSelectionModel().getSelectedItem()) {
+                            showPreview(thumbnails);
+                        }
+                    } else if (!preview.isCancelled()) {
+                        LOG.addAll("Error: Image preview failed. Please ensure that the selected ImageServer is still connected and available.", SEP);
+                    }
+                }));
     }
      
     /**
@@ -255,5 +369,82 @@ public class FXMLDocumentController implements Initializable {
         ipAddressColumn.setCellValueFactory(new PropertyValueFactory<>("Address"));
         statusColumn.setCellValueFactory(new PropertyValueFactory<>("Status"));
         hostTable.setItems(HOSTS_LIST);
+        hostTable.getSelectionModel().selectedItemProperty().addListener(
+                (observable, previous, selected) -> {
+                    ArrayList<Image> cached = selected == null ? null 
+                            : PREVIEW_CACHE.get(selected, 
+                                    NETWORK_CONTROLLER.getCaptureId());
+                    showPreview(cached == null ? new ArrayList<>() : cached);
+                });
+        historyLoad = CAPTURE_HISTORY.openAsync();
+        historyLoad.whenComplete((count, e) -> Platform.runLater(() -> {
+            if (e != null) {
+                LOG.addAll("Error: The capture history could not be read. Finished captures will not be searchable.", SEP);
+            }
+        }));
+        try {
+            for (CaptureJob job : CAPTURE_QUEUE.start()) {
+                LOG.addAll("Resuming capture " + job.getId() + " for " + job.getName() + ".", SEP);
+                logCompletion(job);
+            }
+        } catch (IOException e) {
+            LOG.addAll("Error: The capture journal could not be read. Queued captures will not survive a restart.", SEP);
+        }
+    }
+
+    /**
+     * The logCompletion function logs the outcome of a capture job once
+     * it has finished.
+     * 
+     * @param job the capture job to follow.
+     */
+    private void logCompletion(CaptureJob job) {
+        job.getCompletion().whenComplete((finished, e) -> Platform.runLater(() -> {
+            if (e != null) {
+                LOG.addAll("Error: Image capture " + job.getId() + " failed. Please confirm that the ImageServers are available, and that a valid image directory is set.", SEP);
+            } else if (job.getReport() != null) {
+                LOG.addAll("Capture " + job.getId() + " complete.", job.getReport().toString(), SEP);
+            } else {
+                LOG.addAll("Capture " + job.getId() + " recovered.", SEP);
+            }
+        }));
+    }
+
+    /**
+     * The showPreview function fills the four preview quadrants, in
+     * reading order, from the given thumbnails. Quadrants without a
+     * thumbnail are cleared.
+     * 
+     * @param thumbnails the thumbnails to show.
+     */
+    private void showPreview(ArrayList<Image> thumbnails) {
+        ImageView[] views = getPreviewViews();
+        for (int i = 0; i < views.length; i++) {
+            views[i].setImage(i < thumbnails.size() ? thumbnails.get(i) : null);
+        }
+    }
+
+    /**
+     * The decode function decodes an image straight to the given size, 
+     * which is far cheaper than decoding it at full size and scaling it 
+     * afterwards.
+     * 
+     * @param image the encoded image, or null if there is none.
+     * @param width the width to fit the image within.
+     * @param height the height to fit the image within.
+     * @return the decoded image, or null if there is none.
+     */
+    private static Image decode(EncodedImage image, double width, 
+                                                        double height) {
+        return image == null 
+                ? null : new Image(image.openStream(), width, height, true, true);
+    }
+
+    /**
+     * @return the preview quadrants in reading order.
+     */
+    private ImageView[] getPreviewViews() {
+        return new ImageView[] {imageViewTopLeft, imageViewTopRight,
+                                imageViewBottomLeft, imageViewBottomRight};
     }   
 }
@@ -0,0 +1,661 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A frame channel reads and writes the client/ImageServer wire protocol.
+ * Every message is a frame with a fixed eight byte header followed by its
+ * payload:
+ *
+ * <pre>
+ *   u8  version      (VERSION)
+ *   u8  type         (REGISTER, PING, ...)
+ *   u16 reserved     (0)
+ *   i32 length       (payload bytes that follow)
+ * </pre>
+ *
+ * Images are sent as a series of IMAGE_CHUNK frames, each carrying the
+ * image index, the full image length, the chunk's offset within the image
+ * and a CRC32 of the chunk data, so a partial read can never be mistaken
+ * for a whole image and corruption is caught per chunk. The SHUTTER frame
+ * that precedes the images gives the length and CRC32 of each whole image,
+ * so an image can also be checked end to end, including one whose
+ * transfer was resumed part way through.
+ *
+ * Frame payloads are decoded into a single pooled buffer owned by the
+ * channel, so reading frames does not allocate.
+ *
+ * @author Kieran
+ */
+class FrameChannel {
+
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int CHUNK_HEADER_SIZE = 24;
+    public static final int TRIGGER_SIZE = HEADER_SIZE + 12;
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_PAYLOAD = CHUNK_HEADER_SIZE + CHUNK_SIZE;
+
+    /** Payload: the UTF-8 host name. */
+    public static final byte REGISTER = 1;
+    /** Payload: i64 client send time. */
+    public static final byte PING = 2;
+    /** Payload: i64 host receive time, i64 host send time. */
+    public static final byte PONG = 3;
+    /** Payload: i64 capture time on the host clock. */
+    public static final byte CAPTURE = 4;
+    /** Payload: i64 capture time on the host clock, 0 for immediately. */
+    public static final byte PREVIEW = 5;
+    /** Payload: i64 host shutter time, i32 image count, then i64 length,
+     *  i32 crc for each image. */
+    public static final byte SHUTTER = 6;
+    /** Payload: i32 index, i64 image length, i64 offset, i32 crc, data. */
+    public static final byte IMAGE_CHUNK = 7;
+    /** Payload: i32 index, i64 bytes received. */
+    public static final byte ACK = 8;
+    /** Payload: the UTF-8 error message. */
+    public static final byte ERROR = 9;
+    /** Payload: i64 first capture time, i64 interval, i32 frame count. */
+    public static final byte BURST = 10;
+    /** Payload: i64 host shutter time of the capture to send again, i32
+     *  first image to send, i64 byte offset to start that image from, i64
+     *  id of the trigger that fired the capture. A shutter time of 0 asks
+     *  for the capture by its trigger id alone. */
+    public static final byte FETCH = 11;
+    /** Payload: i64 trigger id, i32 host count, then for each host a u8
+     *  address length, the address and its i64 capture time on its own
+     *  clock. Sent as a datagram to every host at once, and over the
+     *  control connection, with a single host, to collect the reply. */
+    public static final byte TRIGGER = 12;
+    /** Payload: i64 trigger id. Sent as a datagram, in answer to a
+     *  TRIGGER datagram. */
+    public static final byte TRIGGER_ACK = 13;
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final BufferPool pool;
+    private final ByteBuffer header;
+    private final ByteBuffer control;
+    private final CRC32 crc;
+    private ByteBuffer payload;
+    private ByteBuffer chunk;
+
+    public FrameChannel(ReadableByteChannel in, WritableByteChannel out,
+                                                        BufferPool pool) {
+        this.in = in;
+        this.out = out;
+        this.pool = pool;
+        header = ByteBuffer.allocate(HEADER_SIZE);
+        control = ByteBuffer.allocate(HEADER_SIZE + 32);
+        crc = new CRC32();
+        payload = pool.acquire();
+    }
+
+    /**
+     * This function reads the next frame into the payload buffer.
+     *
+     * @return the type of the frame.
+     * @throws IOException
+     */
+    public byte read() throws IOException {
+        header.clear();
+        readFully(header);
+        header.flip();
+        byte version = header.get();
+        byte type = header.get();
+        header.getShort();
+        int length = header.getInt();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        if (length < 0 || length > payload.capacity()) {
+            throw new ProtocolException("Frame length " + length + " out of range");
+        }
+        payload.clear().limit(length);
+        readFully(payload);
+        payload.flip();
+        if (type == ERROR) {
+            throw new ProtocolException(decodeString(payload));
+        }
+        return type;
+    }
+
+    /**
+     * This function reads the next frame and checks that it is of the
+     * expected type.
+     *
+     * @param type the expected frame type.
+     * @return the payload of the frame, valid until the next read.
+     * @throws IOException
+     */
+    public ByteBuffer expect(byte type) throws IOException {
+        byte actual = read();
+        if (actual != type) {
+            throw new ProtocolException(String.format(
+                    "Expected frame type %d but received %d", type, actual));
+        }
+        return payload;
+    }
+
+    /**
+     * @return the payload of the frame last read, valid until the next read.
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    /**
+     * This function opens the next image on the channel. The first chunk
+     * is read straight away so that the image length is known.
+     *
+     * @param index the index the image is expected to have.
+     * @return a channel that yields exactly the image's bytes.
+     * @throws IOException
+     */
+    public ImageChannel openImage(int index) throws IOException {
+        return new ImageChannel(index, 0);
+    }
+
+    /**
+     * This function opens the rest of an image whose transfer is being
+     * resumed, as sent in reply to a ranged FETCH.
+     *
+     * @param index the index the image is expected to have.
+     * @param offset the offset the first chunk is expected to start at.
+     * @return a channel that yields the image's bytes from the offset.
+     * @throws IOException
+     */
+    public ImageChannel openImage(int index, long offset) throws IOException {
+        return new ImageChannel(index, offset);
+    }
+
+    public void writePing(long sent) throws IOException {
+        begin(PING).putLong(sent);
+        flush();
+    }
+
+    public void writePong(long received, long sent) throws IOException {
+        begin(PONG).putLong(received).putLong(sent);
+        flush();
+    }
+
+    public void writeCommand(byte type, long time) throws IOException {
+        begin(type).putLong(time);
+        flush();
+    }
+
+    public void writeBurst(long start, long interval, int frames)
+                                                        throws IOException {
+        begin(BURST).putLong(start).putLong(interval).putInt(frames);
+        flush();
+    }
+
+    public void writeFetch(long shutter, long trigger, int index, 
+                                            long offset) throws IOException {
+        begin(FETCH).putLong(shutter).putInt(index).putLong(offset)
+                .putLong(trigger);
+        flush();
+    }
+
+    /**
+     * This function writes a TRIGGER frame for a single host. It asks for
+     * the reply to the given trigger, and triggers the host first if it
+     * did not receive the trigger datagram.
+     *
+     * @param id the trigger id.
+     * @param address the address of the host.
+     * @param time the capture time on the host clock.
+     * @throws IOException
+     */
+    public void writeTrigger(long id, InetAddress address, long time)
+                                                        throws IOException {
+        writeFully(encodeTrigger(id, new InetAddress[] {address},
+                                                    new long[] {time}));
+    }
+
+    /**
+     * This function writes a SHUTTER frame. The frame grows with the
+     * number of images, so it is built in a buffer of its own.
+     *
+     * @param shutter the host time at which the shutter fired.
+     * @param lengths the length of each image.
+     * @param checksums the CRC32 of each whole image.
+     * @throws IOException
+     */
+    public void writeShutter(long shutter, long[] lengths, int[] checksums)
+                                                        throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(
+                HEADER_SIZE + 12 + 12 * lengths.length);
+        frame.put(VERSION).put(SHUTTER).putShort((short) 0)
+                .putInt(frame.capacity() - HEADER_SIZE)
+                .putLong(shutter).putInt(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            frame.putLong(lengths[i]).putInt(checksums[i]);
+        }
+        frame.flip();
+        writeFully(frame);
+    }
+
+    public void writeAck(int index, long received) throws IOException {
+        begin(ACK).putInt(index).putLong(received);
+        flush();
+    }
+
+    /**
+     * This function writes an ERROR frame carrying the whole message, cut
+     * only if it would not fit in a frame the reader will accept, and then
+     * only at a character boundary.
+     *
+     * @param message the description of the failure.
+     * @throws IOException
+     */
+    public void writeError(String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_PAYLOAD);
+        while (length < bytes.length && length > 0
+                && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(VERSION).put(ERROR).putShort((short) 0)
+                .putInt(length).put(bytes, 0, length);
+        frame.flip();
+        writeFully(frame);
+    }
+
+    /**
+     * This function writes one chunk of an image, computing its checksum.
+     * The header and the data go out in a single write, so that on a
+     * connection with Nagle's algorithm off the header is not sent as a
+     * segment of its own: a gathering channel is handed both buffers,
+     * and any other channel is given a copy of the whole frame.
+     *
+     * @param index the index of the image.
+     * @param length the full length of the image.
+     * @param offset the offset of this chunk within the image.
+     * @param data the chunk data, at most CHUNK_SIZE bytes.
+     * @throws IOException
+     */
+    public void writeChunk(int index, long length, long offset, ByteBuffer data)
+                                                        throws IOException {
+        crc.reset();
+        crc.update(data.duplicate());
+        control.clear();
+        control.put(VERSION).put(IMAGE_CHUNK).putShort((short) 0)
+                .putInt(CHUNK_HEADER_SIZE + data.remaining())
+                .putInt(index).putLong(length).putLong(offset)
+                .putInt((int) crc.getValue());
+        control.flip();
+        if (out instanceof GatheringByteChannel) {
+            ByteBuffer[] frame = {control, data};
+            while (data.hasRemaining()) {
+                ((GatheringByteChannel) out).write(frame);
+            }
+            return;
+        }
+        if (chunk == null) {
+            chunk = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD);
+        }
+        chunk.clear();
+        chunk.put(control).put(data).flip();
+        writeFully(chunk);
+    }
+
+    /**
+     * This function encodes a REGISTER frame.
+     *
+     * @param name the host name.
+     * @return the encoded frame.
+     */
+    public static ByteBuffer encodeRegister(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        frame.put(VERSION).put(REGISTER).putShort((short) 0)
+                .putInt(bytes.length).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * This function decodes a REGISTER frame from bytes that may still be
+     * arriving, as on a non-blocking connection.
+     *
+     * @param received the bytes received so far, in write mode.
+     * @return the host name, or null if the frame is not yet complete.
+     * @throws ProtocolException if the bytes are not a REGISTER frame, or
+     *         the name is not one isValidName accepts.
+     */
+    public static String decodeRegister(ByteBuffer received)
+                                                throws ProtocolException {
+        if (received.position() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer frame = (ByteBuffer) received.duplicate().flip();
+        if (frame.get() != VERSION || frame.get() != REGISTER) {
+            throw new ProtocolException("Expected a registration frame");
+        }
+        frame.getShort();
+        int length = frame.getInt();
+        if (length < 0 || length > received.capacity() - HEADER_SIZE) {
+            throw new ProtocolException("Registration too long");
+        }
+        if (frame.remaining() < length) {
+            return null;
+        }
+        frame.limit(HEADER_SIZE + length);
+        String name = decodeString(frame);
+        if (!isValidName(name)) {
+            throw new ProtocolException("Invalid host name");
+        }
+        return name;
+    }
+
+    /**
+     * This function checks a host name before it is trusted. Names end up
+     * in paths on the client disk, so a name may not be empty, may not be
+     * a relative path step, and may not hold path separators or control
+     * characters.
+     *
+     * @param name the name a host registered with.
+     * @return true if the name may be used.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This function returns the bytes a host's entry adds to a TRIGGER
+     * frame: its address, prefixed by the address length, and its capture
+     * time. An IPv6 entry is nearly twice the size of an IPv4 one.
+     *
+     * @param address the address of the host.
+     * @return the size of the entry.
+     */
+    public static int triggerEntrySize(InetAddress address) {
+        return 1 + address.getAddress().length + 8;
+    }
+
+    /**
+     * This function encodes a TRIGGER frame with a capture time for each
+     * of the given hosts.
+     *
+     * @param id the trigger id.
+     * @param addresses the address of each host.
+     * @param times the capture time of each host, on its own clock.
+     * @return the encoded frame.
+     */
+    public static ByteBuffer encodeTrigger(long id, InetAddress[] addresses,
+                                                            long[] times) {
+        int length = TRIGGER_SIZE - HEADER_SIZE;
+        for (InetAddress address : addresses) {
+            length += triggerEntrySize(address);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(VERSION).put(TRIGGER).putShort((short) 0).putInt(length)
+                .putLong(id).putInt(addresses.length);
+        for (int i = 0; i < addresses.length; i++) {
+            byte[] address = addresses[i].getAddress();
+            frame.put((byte) address.length).put(address).putLong(times[i]);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * This function finds a host's capture time in a TRIGGER payload.
+     *
+     * @param payload the payload, positioned after the trigger id.
+     * @param address the address of the host.
+     * @return the capture time on the host clock, or null if the trigger
+     *         does not include the host.
+     * @throws ProtocolException if the payload is malformed.
+     */
+    public static Long decodeTrigger(ByteBuffer payload, InetAddress address)
+                                                throws ProtocolException {
+        byte[] own = address.getAddress();
+        try {
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = payload.get();
+                if (length != 4 && length != 16) {
+                    throw new ProtocolException("Malformed trigger address");
+                }
+                byte[] entry = new byte[length];
+                payload.get(entry);
+                long time = payload.getLong();
+                if (Arrays.equals(own, entry)) {
+                    return time;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated trigger");
+        }
+        return null;
+    }
+
+    /**
+     * This function encodes a TRIGGER_ACK frame.
+     *
+     * @param id the trigger id being acknowledged.
+     * @return the encoded frame.
+     */
+    public static ByteBuffer encodeTriggerAck(long id) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8);
+        frame.put(VERSION).put(TRIGGER_ACK).putShort((short) 0).putInt(8)
+                .putLong(id);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * This function checks the header of a frame received whole, as a
+     * datagram.
+     *
+     * @param datagram the datagram, in read mode.
+     * @param type the expected frame type.
+     * @return the payload of the frame.
+     * @throws ProtocolException if the datagram is not a whole frame of
+     *                           the expected type.
+     */
+    public static ByteBuffer openDatagram(ByteBuffer datagram, byte type)
+                                                throws ProtocolException {
+        if (datagram.remaining() < HEADER_SIZE
+                || datagram.get() != VERSION || datagram.get() != type) {
+            throw new ProtocolException("Unexpected datagram");
+        }
+        datagram.getShort();
+        int length = datagram.getInt();
+        if (length != datagram.remaining()) {
+            throw new ProtocolException("Truncated datagram");
+        }
+        return datagram.slice();
+    }
+
+    /**
+     * This function returns the payload buffer to the pool. The channel
+     * must not be used afterwards.
+     */
+    public void release() {
+        if (payload != null) {
+            pool.release(payload);
+            payload = null;
+        }
+    }
+
+    private static String decodeString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer begin(byte type) {
+        control.clear();
+        control.put(VERSION).put(type).putShort((short) 0).putInt(0);
+        return control;
+    }
+
+    private void flush() throws IOException {
+        control.putInt(4, control.position() - HEADER_SIZE);
+        control.flip();
+        writeFully(control);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * An image channel yields the data of one image, reading and checking
+     * its chunk frames as they are consumed.
+     */
+    class ImageChannel implements ReadableByteChannel {
+
+        private final int index;
+        private final CRC32 imageCrc;
+        private long length;
+        private long received;
+        private boolean open;
+
+        private ImageChannel(int index, long offset) throws IOException {
+            this.index = index;
+            this.length = -1;
+            imageCrc = new CRC32();
+            received = offset;
+            open = true;
+            nextChunk();
+        }
+
+        /**
+         * @return the full length of the image.
+         */
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (!payload.hasRemaining()) {
+                if (received == length) {
+                    return -1;
+                }
+                nextChunk();
+            }
+            int count = Math.min(dst.remaining(), payload.remaining());
+            ByteBuffer slice = payload.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            payload.position(payload.position() + count);
+            return count;
+        }
+
+        /**
+         * @return the CRC32 of every byte of the image this channel has
+         *         read, which is the CRC32 of the whole image once it has
+         *         been drained, if it was opened at offset zero.
+         */
+        public int checksum() {
+            return (int) imageCrc.getValue();
+        }
+
+        /**
+         * This function discards whatever the consumer did not read, so
+         * the channel is positioned at the next frame.
+         *
+         * @throws IOException
+         */
+        public void drain() throws IOException {
+            payload.position(payload.limit());
+            while (received < length) {
+                nextChunk();
+                payload.position(payload.limit());
+            }
+        }
+
+        private void nextChunk() throws IOException {
+            ByteBuffer chunk = expect(IMAGE_CHUNK);
+            int chunkIndex = chunk.getInt();
+            long chunkLength = chunk.getLong();
+            long offset = chunk.getLong();
+            int checksum = chunk.getInt();
+            if (length < 0) {
+                length = chunkLength;
+            }
+            if (chunkIndex != index || chunkLength != length
+                                                || offset != received) {
+                throw new ProtocolException(String.format(
+                        "Unexpected chunk of image %d at offset %d",
+                        chunkIndex, offset));
+            }
+            crc.reset();
+            crc.update(chunk.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new ProtocolException(String.format(
+                        "Checksum mismatch in image %d at offset %d",
+                        index, offset));
+            }
+            imageCrc.update(chunk.duplicate());
+            received += chunk.remaining();
+            if (received > length) {
+                throw new ProtocolException("Image " + index + " overran its length");
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+    }
+
+}
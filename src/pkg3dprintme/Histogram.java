@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram counts non-negative values in log-linear buckets: each power
+ * of two is split into eight equal buckets, so a value is known to within
+ * 12.5% while the whole range of a long fits in under 500 counters.
+ * Recording is lock-free and does not allocate, so it is cheap enough to
+ * call on every image and every ping.
+ *
+ * @author Kieran
+ */
+class Histogram {
+    
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator min;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        counts = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param value the value to count; negative values count as zero.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMin() {
+        return count.sum() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return count.sum() == 0 ? 0 : max.get();
+    }
+
+    /**
+     * @param fraction the percentile wanted, between 0 and 1.
+     * @return the middle of the bucket holding the percentile, clamped to
+     *         the largest value recorded.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long low = lowerBound(i);
+                long high = lowerBound(i + 1);
+                return Math.min(low + (high - low) / 2, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+        if (exponent > 62) {
+            return Long.MAX_VALUE;
+        }
+        long sub = index & (SUB_BUCKETS - 1);
+        return (1L << exponent) | (sub << (exponent - SUB_BITS));
+    }
+    
+}
@@ -16,45 +16,57 @@
  */
 package pkg3dprintme;
 
-import javafx.beans.property.SimpleStringProperty;
-
 /**
+ * A host is a single ImageServer. The registry updates its name and status
+ * from its own thread while captures and views read them, so the fields
+ * are volatile rather than bound properties, which keeps the class free
+ * of JavaFX for the command line front end.
  * 
  * @author Kieran
  */
 public class Host {
-    private final SimpleStringProperty name;
-    private final SimpleStringProperty address;
-    private final SimpleStringProperty status;
+
+    /**
+     * The statuses the registry gives a host: registered and answering
+     * heartbeats, registered but silent for a heartbeat or more, and
+     * dropped after staying silent past the expiry.
+     */
+    public static final String CONNECTED = "Connected";
+    public static final String UNRESPONSIVE = "Unresponsive";
+    public static final String DISCONNECTED = "Disconnected";
+
+    private volatile String name;
+    private volatile String address;
+    private volatile String status;
 
     public Host(String name, String address, String status) {
-        this.name = new SimpleStringProperty(name);
-        this.address = new SimpleStringProperty(address);
-        this.status = new SimpleStringProperty(status);
+        this.name = name;
+        this.address = address;
+        this.status = status;
     }
 
     public String getName() {
-        return name.get();
+        return name;
     }
 
     public void setName(String name) {
-        this.name.set(name);
+        this.name = name;
     }
 
     public String getAddress() {
-        return address.get();
+        return address;
     }
 
     public void setAddress(String address) {
-        this.address.set(address);
+        this.address = address;
     }
 
     public String getStatus() {
-        return status.get();
+        return status;
     }
 
     public void setStatus(String status) {
-        this.status.set(status);
+        this.status = status;
     }
     
     public boolean validate() {
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A host connection is the one long-lived control connection to an
+ * ImageServer. Sync, trigger, transfer and preview exchanges all run over
+ * it, one exchange at a time, so the TCP handshake and slow start are paid
+ * once per host rather than once per operation.
+ * 
+ * A connection that fails is closed, and the next exchange reconnects.
+ * 
+ * A trigger is sent to every host before any reply is read, so a
+ * connection can be left with a reply owed to it between two exchanges.
+ * Such a connection is reserved: other exchanges wait, and health checks
+ * leave it alone, until the exchange that collects the reply has run.
+ * If the reply is never collected the connection is discarded instead.
+ *
+ * @author Kieran
+ */
+class HostConnection {
+    
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int RESERVE_POLL = 100;
+    
+    /**
+     * An exchange is a single request and response on the connection.
+     * 
+     * @param <T> the result of the exchange.
+     */
+    interface Exchange<T> {
+        T run(FrameChannel channel) throws Exception;
+    }
+    
+    private final Host host;
+    private final int port;
+    private final BufferPool pool;
+    private final ReentrantLock lock;
+    private final Condition collected;
+    private Socket socket;
+    private FrameChannel channel;
+    private volatile long lastUsed;
+    private volatile boolean reserved;
+
+    public HostConnection(Host host, int port, BufferPool pool) {
+        this.host = host;
+        this.port = port;
+        this.pool = pool;
+        lock = new ReentrantLock();
+        collected = lock.newCondition();
+    }
+
+    /**
+     * This function runs an exchange on the connection, connecting first
+     * if the connection is not open. Exchanges from different threads are
+     * run one after another, and wait for a reserved connection's reply to
+     * be collected.
+     * 
+     * @param <T> the result of the exchange.
+     * @param timeout the read timeout for the exchange, in milliseconds.
+     * @param exchange the exchange to run.
+     * @return the result of the exchange.
+     * @throws Exception 
+     */
+    public <T> T call(int timeout, Exchange<T> exchange) throws Exception {
+        lock.lockInterruptibly();
+        try {
+            while (reserved) {
+                collected.await(RESERVE_POLL, TimeUnit.MILLISECONDS);
+            }
+            return run(timeout, exchange);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This function runs an exchange that leaves a reply waiting to be
+     * read, and reserves the connection for the exchange that collects it.
+     * 
+     * @param timeout the read timeout for the exchange, in milliseconds.
+     * @param exchange the exchange to run.
+     * @throws Exception 
+     */
+    public void send(int timeout, Exchange<?> exchange) throws Exception {
+        lock.lockInterruptibly();
+        try {
+            while (reserved) {
+                collected.await(RESERVE_POLL, TimeUnit.MILLISECONDS);
+            }
+            run(timeout, exchange);
+            reserved = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This function runs the exchange that reads the reply a reserved
+     * connection is owed, and releases the reservation.
+     * 
+     * @param <T> the result of the exchange.
+     * @param timeout the read timeout for the exchange, in milliseconds.
+     * @param exchange the exchange to run.
+     * @return the result of the exchange.
+     * @throws Exception 
+     */
+    public <T> T collect(int timeout, Exchange<T> exchange) throws Exception {
+        lock.lockInterruptibly();
+        try {
+            reserved = false;
+            collected.signalAll();
+            return run(timeout, exchange);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This function closes the connection if it is owed a reply that will
+     * now never be collected, since the reply would otherwise be read by
+     * whichever exchange came next.
+     */
+    public void discard() {
+        if (reserved) {
+            close();
+        }
+    }
+
+    /**
+     * This function runs an exchange only if the connection is idle, and
+     * is used for health checks so they never hold up real work.
+     * 
+     * @param <T> the result of the exchange.
+     * @param timeout the read timeout for the exchange, in milliseconds.
+     * @param exchange the exchange to run.
+     * @return the result of the exchange, or null if the connection was busy.
+     * @throws Exception 
+     */
+    public <T> T callIfIdle(int timeout, Exchange<T> exchange) throws Exception {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            if (reserved) {
+                return null;
+            }
+            return run(timeout, exchange);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T run(int timeout, Exchange<T> exchange) throws Exception {
+        try {
+            if (!isOpen()) {
+                connect();
+            }
+            socket.setSoTimeout(timeout);
+            T result = exchange.run(channel);
+            lastUsed = System.nanoTime();
+            return result;
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        if (channel != null) {
+            channel.release();
+            channel = null;
+        }
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host.getAddress(), port), 
+                                                        CONNECT_TIMEOUT);
+        // Every frame is written whole, so the stream is left unbuffered
+        // and each frame goes out as soon as it is written.
+        channel = new FrameChannel(Channels.newChannel(socket.getInputStream()),
+                        Channels.newChannel(socket.getOutputStream()), pool);
+    }
+
+    /**
+     * @return whether the connection is currently open.
+     */
+    public boolean isOpen() {
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * @return the time since the last successful exchange, in milliseconds.
+     */
+    public long getIdleTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed);
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    /**
+     * This function closes the connection. It is safe to call at any time;
+     * the next exchange will reconnect.
+     */
+    public void close() {
+        reserved = false;
+        Socket closing = socket;
+        if (closing != null && !closing.isClosed()) {
+            try {
+                closing.close();
+            } catch (IOException e) {
+                // The connection is being discarded either way.
+            }
+        }
+    }
+    
+}
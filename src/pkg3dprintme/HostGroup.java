@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A host group is a set of ImageServers that share a subnet, and is the
+ * unit a coordinator works through when triggering a large rig. Hosts on
+ * the same subnet sit behind the same switch, so one coordinator per group
+ * spreads the trigger over the switches rather than queueing every command
+ * behind one thread, and no coordinator has more than a bounded number of
+ * hosts to get through before the shutter time.
+ *
+ * @author Kieran
+ */
+class HostGroup {
+
+    private final String subnet;
+    private final HostList hosts;
+
+    HostGroup(String subnet) {
+        this.subnet = subnet;
+        this.hosts = new HostList();
+    }
+
+    /**
+     * This function splits a host list into groups by subnet, taken as the
+     * address up to its last component, and splits any subnet with more
+     * than the given number of hosts into several groups.
+     * 
+     * @param hostList the hosts to be grouped.
+     * @param maxSize the most hosts a group may hold.
+     * @return the groups, in the order their first hosts appear.
+     */
+    public static List<HostGroup> partition(HostList hostList, int maxSize) {
+        LinkedHashMap<String, List<HostGroup>> subnets = new LinkedHashMap<>();
+        for (Host host : hostList.getAll()) {
+            String address = host.getAddress();
+            int last = Math.max(address.lastIndexOf('.'), 
+                                        address.lastIndexOf(':'));
+            String subnet = last < 0 ? address : address.substring(0, last);
+            List<HostGroup> groups = subnets.computeIfAbsent(subnet, 
+                                            (key) -> new ArrayList<>());
+            if (groups.isEmpty() 
+                    || groups.get(groups.size() - 1).size() >= maxSize) {
+                groups.add(new HostGroup(subnet));
+            }
+            groups.get(groups.size() - 1).hosts.add(host);
+        }
+        ArrayList<HostGroup> partition = new ArrayList<>();
+        subnets.values().forEach(partition::addAll);
+        return partition;
+    }
+
+    public String getSubnet() {
+        return subnet;
+    }
+
+    public HostList getHosts() {
+        return hosts;
+    }
+
+    public int size() {
+        return hosts.size();
+    }
+
+}
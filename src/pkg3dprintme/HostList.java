@@ -53,6 +53,10 @@ public class HostList {
         return hostList.get(index);
     }
 
+    public int size() {
+        return hostList.size();
+    }
+
     public ArrayList<Host> getAll() {
         return hostList;
     }
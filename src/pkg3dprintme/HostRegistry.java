@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The host registry keeps an always-on record of the ImageServers on the
+ * network. It listens for registrations for as long as the application is
+ * running, and re-announces the client address on every heartbeat; each
+ * ImageServer answers an announcement by registering again, which counts
+ * as its heartbeat. Hosts that miss a heartbeat are marked unresponsive,
+ * and hosts that stay silent past the expiry are dropped. A registering
+ * connection that does not finish its registration within the timeout is
+ * closed, so a connection that never sends a byte cannot hold a socket
+ * open for the life of the application.
+ *
+ * Captures read the current snapshot of the registry, so no discovery
+ * round-trip is needed on the capture path.
+ *
+ * @author Kieran
+ */
+class HostRegistry {
+
+    private static final int HEARTBEAT_INTERVAL = 2000;
+    private static final int HOST_EXPIRY = 3 * HEARTBEAT_INTERVAL;
+    private static final int QUIET_PERIOD = 500;
+    private static final int REGISTRATION_TIMEOUT = HEARTBEAT_INTERVAL;
+
+    private final int maxHosts;
+    private final int udpPort;
+    private final int tcpPort;
+    private final InetAddress broadcastAddress;
+    private final ConcurrentHashMap<String, Host> hosts;
+    private final ConcurrentHashMap<String, Long> lastSeen;
+    private final ScheduledExecutorService heartbeat;
+    private ServerSocketChannel acceptor;
+    private Selector selector;
+    private volatile boolean running;
+    private long lastRegistration;
+
+    /**
+     * The constructor prepares the registry; it does not touch the network
+     * until start is called.
+     *
+     * @param maxHosts the number of ImageServers expected on the network.
+     * @param broadcastAddress the address announcements are sent to.
+     * @param udpPort the port the ImageServers listen for announcements on.
+     * @param tcpPort the port registrations are accepted on.
+     */
+    public HostRegistry(int maxHosts, InetAddress broadcastAddress,
+                                                int udpPort, int tcpPort) {
+        this.maxHosts = maxHosts;
+        this.broadcastAddress = broadcastAddress;
+        this.udpPort = udpPort;
+        this.tcpPort = tcpPort;
+        hosts = new ConcurrentHashMap<>();
+        lastSeen = new ConcurrentHashMap<>();
+        heartbeat = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * This function binds the acceptor and starts the listening and
+     * heartbeat threads.
+     *
+     * @throws java.lang.Exception
+     */
+    public synchronized void start() throws Exception {
+        if (running) {
+            return;
+        }
+        acceptor = ServerSocketChannel.open();
+        try {
+            acceptor.socket().setReuseAddress(true);
+            acceptor.bind(new InetSocketAddress(tcpPort), maxHosts);
+            acceptor.configureBlocking(false);
+            selector = Selector.open();
+            acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            // Leave the port free for another attempt.
+            acceptor.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+        running = true;
+        Thread listener = new Thread(this::listen, "registry");
+        listener.setDaemon(true);
+        listener.start();
+        heartbeat.scheduleWithFixedDelay(this::beat, 0,
+                                HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This function stops listening and closes the acceptor.
+     *
+     * @throws java.lang.Exception
+     */
+    public synchronized void stop() throws Exception {
+        running = false;
+        heartbeat.shutdownNow();
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * This function returns the hosts currently registered, ordered by
+     * address so that repeated snapshots are stable.
+     *
+     * @return a host list containing the registered hosts.
+     */
+    public HostList getHosts() {
+        HostList hostList = new HostList();
+        ArrayList<Host> registered = new ArrayList<>(hosts.values());
+        registered.sort(Comparator.comparing(Host::getAddress));
+        registered.forEach(hostList::add);
+        return hostList;
+    }
+
+    /**
+     * This function returns only the hosts that answered the most recent
+     * heartbeats, which are the ones a capture should use.
+     *
+     * @return a host list containing the responsive hosts.
+     */
+    public HostList getConnectedHosts() {
+        HostList hostList = new HostList();
+        getHosts().getAll().stream()
+                .filter((host) -> Host.CONNECTED.equals(host.getStatus()))
+                .forEach(hostList::add);
+        return hostList;
+    }
+
+    /**
+     * This function announces the client address immediately and waits
+     * for the ImageServers to answer. It returns once every expected host
+     * has answered, once no new answer has arrived for the quiet period,
+     * or at the timeout, whichever comes first.
+     *
+     * @param timeout the longest time to wait, in milliseconds.
+     * @return a host list containing the registered hosts.
+     * @throws java.lang.Exception
+     */
+    public HostList discover(long timeout) throws Exception {
+        long round = System.nanoTime();
+        long deadline = round + TimeUnit.MILLISECONDS.toNanos(timeout);
+        announceAddress();
+        synchronized (this) {
+            while (answered(round) < maxHosts) {
+                long now = System.nanoTime();
+                long quietDeadline = lastRegistration > round
+                        ? lastRegistration
+                            + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD)
+                        : deadline;
+                long remaining = Math.min(deadline, quietDeadline) - now;
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return getHosts();
+    }
+
+    /**
+     * This function counts the hosts that have registered since the
+     * given time.
+     */
+    private int answered(long since) {
+        return (int) lastSeen.values().stream()
+                .filter((seen) -> seen >= since)
+                .count();
+    }
+
+    /**
+     * This function announces the client machine's address on UDP broadcast.
+     * The image servers on the network will subsequently try to connect to
+     * the client to provide their connection information and status.
+     *
+     * @author Siyuan Ji
+     * @author Kieran Hannigan
+     * @throws java.lang.Exception
+     */
+    private void announceAddress() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            String serverIp = InetAddress.getLocalHost().getHostAddress();
+            byte[] buf = serverIp.getBytes();
+            DatagramPacket announcement;
+            announcement = new DatagramPacket(buf, buf.length,
+                                    broadcastAddress, udpPort);
+            socket.send(announcement);
+        } catch (Exception e) {
+            throw e;
+        }
+    }
+
+    /**
+     * The heartbeat re-announces the client, then ages every host: hosts
+     * that have missed a heartbeat are marked unresponsive, and hosts that
+     * have been silent past the expiry are removed. Nothing may escape
+     * it, since an exception would cancel every later heartbeat.
+     */
+    private void beat() {
+        try {
+            announceAddress();
+        } catch (Exception e) {
+            System.out.println("Heartbeat announcement failed.");
+        }
+        try {
+            long now = System.nanoTime();
+            for (String address : hosts.keySet()) {
+                Long seen = lastSeen.get(address);
+                if (seen == null) {
+                    continue;
+                }
+                long silent = TimeUnit.NANOSECONDS.toMillis(now - seen);
+                if (silent > HOST_EXPIRY) {
+                    Host host = hosts.remove(address);
+                    lastSeen.remove(address);
+                    if (host != null) {
+                        host.setStatus(Host.DISCONNECTED);
+                    }
+                } else if (silent > 2 * HEARTBEAT_INTERVAL) {
+                    Host host = hosts.get(address);
+                    if (host != null) {
+                        host.setStatus(Host.UNRESPONSIVE);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Heartbeat failed: " + e);
+        }
+    }
+
+    /**
+     * This function records a registration. A host that registers again
+     * keeps its existing Host object so that tables keyed by host stay
+     * valid across heartbeats.
+     */
+    private void register(String name, String address) {
+        long now = System.nanoTime();
+        // The heartbeat ages hosts by their last registration, so it is
+        // recorded before the host can be seen.
+        lastSeen.put(address, now);
+        Host host = hosts.computeIfAbsent(address,
+                (key) -> new Host(name, address, Host.CONNECTED));
+        host.setName(name);
+        host.setStatus(Host.CONNECTED);
+        synchronized (this) {
+            lastRegistration = now;
+            notifyAll();
+        }
+    }
+
+    /**
+     * This function accepts connections from the image servers and receives
+     * their connection information and status. It runs on its own thread
+     * for as long as the registry is running, so registrations and
+     * heartbeats are accepted at any time.
+     *
+     * @author Siyuan Ji
+     * @author Kieran Hannigan
+     */
+    private void listen() {
+        try {
+            while (running) {
+                selector.select(HEARTBEAT_INTERVAL);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel client = acceptor.accept();
+                        if (client != null) {
+                            client.configureBlocking(false);
+                            client.register(selector, SelectionKey.OP_READ,
+                                                    new Registration());
+                        }
+                    } else if (key.isReadable()) {
+                        readAddress(key);
+                    }
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            System.out.println("Registry stopped: " + e.getMessage());
+        } finally {
+            try {
+                acceptor.close();
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more can be done while shutting down.
+            }
+            running = false;
+        }
+    }
+
+    /**
+     * This function reads an image server's registration from its
+     * connection. The registration is complete once a whole REGISTER frame
+     * has arrived, at which point the connection is closed.
+     *
+     * @param key the selection key of the registering connection.
+     * @throws IOException
+     */
+    private void readAddress(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer buffer = ((Registration) key.attachment()).buffer;
+        int read;
+        try {
+            read = client.read(buffer);
+        } catch (IOException e) {
+            client.close();
+            return;
+        }
+        String name;
+        try {
+            name = FrameChannel.decodeRegister(buffer);
+        } catch (IOException e) {
+            client.close();
+            return;
+        }
+        if (name == null) {
+            if (read < 0 || !buffer.hasRemaining()) {
+                client.close();
+            }
+            return;
+        }
+        String address = client.socket().getInetAddress().getHostAddress();
+        client.close();
+        register(name, address);
+        System.out.println(String.format("Received... %s %s", name, address));
+    }
+
+    /**
+     * This function closes registering connections that have been open
+     * longer than the registration timeout without completing a REGISTER
+     * frame.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Registration)) {
+                continue;
+            }
+            long open = now - ((Registration) attachment).accepted;
+            if (TimeUnit.NANOSECONDS.toMillis(open) > REGISTRATION_TIMEOUT) {
+                SocketChannel client = (SocketChannel) key.channel();
+                try {
+                    System.out.println(String.format(
+                            "Registration from %s timed out.", 
+                            client.getRemoteAddress()));
+                    client.close();
+                } catch (IOException e) {
+                    // The connection is being dropped either way.
+                }
+            }
+        }
+    }
+
+    /**
+     * A registration is the state of a registering connection: the bytes
+     * received so far, and when it was accepted.
+     */
+    private static class Registration {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private final long accepted = System.nanoTime();
+    }
+
+}
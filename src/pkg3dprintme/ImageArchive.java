@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An image archive writes images to the client disk as they arrive from
+ * the ImageServers, storing each distinct image only once. The JPEG bytes
+ * are never decoded; they are hashed with SHA-256 as they stream from the
+ * socket to a partial file, and once the image has been committed, having
+ * passed its end to end check, the file is moved into the archive under
+ * its hash. An image that fails the check stays a partial file until it
+ * is received again, so a damaged copy is never archived. An image that
+ * is already archived, such as a retried or repeated capture, is
+ * discarded instead, so the archive grows with unique content only.
+ * 
+ * The archive is laid out as:
+ * 
+ * <pre>
+ *   &lt;archive&gt;/objects/&lt;ab&gt;/&lt;sha256&gt;.jpg      one file per distinct image
+ *   &lt;session&gt;/manifest.tsv                    host, address, index, sha256, length
+ *   &lt;session&gt;/&lt;host&gt;/&lt;index&gt;.jpg              a hard link to the object
+ *   &lt;session&gt;/&lt;host&gt;/&lt;index&gt;.part             an image still arriving
+ * </pre>
+ * 
+ * where &lt;host&gt; is the host name followed by its address, as in
+ * pi-07@10.0.0.17. The address is the registry's key, so hosts that share
+ * a name never share a directory; anything in either that is not safe in
+ * a file name is replaced with an underscore.
+ * 
+ * The manifest is appended to as each image completes; a later line for
+ * the same host and index replaces an earlier one. The session links keep
+ * the familiar folder layout at no cost in space; on a file system without
+ * hard links the object is copied instead. A partial file left by an
+ * interrupted transfer is kept, so the transfer can resume at the end of
+ * it. The time spent writing each image to disk is recorded in the
+ * capture metrics.
+ *
+ * @author Kieran
+ */
+class ImageArchive implements ImageSink {
+    
+    static final String MANIFEST = "manifest.tsv";
+    
+    private final Path objectsPath;
+    private final Path sessionPath;
+    private final ConcurrentHashMap<String, Path> objects;
+    private final ConcurrentHashMap<String, Received> received;
+    private final CaptureMetrics metrics;
+
+    /**
+     * @param archivePath the root of the archive, shared between sessions.
+     * @param sessionPath the directory of this session.
+     * @param metrics the metrics the write latency is recorded in.
+     */
+    public ImageArchive(Path archivePath, Path sessionPath, 
+                                                CaptureMetrics metrics) {
+        this.objectsPath = archivePath.resolve("objects");
+        this.sessionPath = sessionPath;
+        this.metrics = metrics;
+        objects = new ConcurrentHashMap<>();
+        received = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void receive(Host host, int index, ReadableByteChannel source, 
+                                        long length) throws IOException {
+        Path partPath = getPartPath(host, index);
+        Files.createDirectories(partPath.getParent());
+        MessageDigest digest = newDigest();
+        long writing;
+        try (FileChannel file = FileChannel.open(partPath, 
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            writing = write(host, file, source, digest, 0, length);
+        }
+        received.put(key(host, index), 
+                    new Received(toHex(digest.digest()), length, writing));
+    }
+
+    @Override
+    public long getOffset(Host host, int index) throws IOException {
+        Path partPath = getPartPath(host, index);
+        return Files.exists(partPath) ? Files.size(partPath) : 0;
+    }
+
+    @Override
+    public void resume(Host host, int index, ReadableByteChannel source, 
+                            long offset, long length) throws IOException {
+        Path partPath = getPartPath(host, index);
+        MessageDigest digest = newDigest();
+        long writing;
+        try (FileChannel file = FileChannel.open(partPath,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE)) {
+            file.truncate(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(FrameChannel.CHUNK_SIZE);
+            while (file.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            writing = write(host, file, source, digest, offset, length);
+        }
+        received.put(key(host, index), 
+                    new Received(toHex(digest.digest()), length, writing));
+    }
+
+    @Override
+    public int checksum(Host host, int index) throws IOException {
+        Path path = received.containsKey(key(host, index)) 
+                ? getPartPath(host, index) : objects.get(key(host, index));
+        if (path == null) {
+            throw new IOException(String.format(
+                    "Image %d from %s is not held.", 
+                    index, host.getAddress()));
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(FrameChannel.CHUNK_SIZE);
+        try (FileChannel file = FileChannel.open(path,
+                                        StandardOpenOption.READ)) {
+            while (file.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * This function moves the image from the source into the file, from
+     * the given position to the end of the image, hashing it on the way.
+     * 
+     * @return the time spent writing to the file, leaving out the time
+     *         spent waiting for the network.
+     */
+    private long write(Host host, FileChannel file, ReadableByteChannel source,
+            MessageDigest digest, long position, long length) 
+                                                        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameChannel.CHUNK_SIZE);
+        long writing = 0;
+        file.position(position);
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            if (source.read(buffer) < 0) {
+                throw new EOFException(String.format(
+                        "%s closed after %d of %d bytes.", 
+                        host.getAddress(), position, length));
+            }
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            long start = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer);
+            }
+            writing += System.nanoTime() - start;
+        }
+        return writing;
+    }
+
+    /**
+     * This function files a received image that has passed its end to end
+     * check under its hash, links it into the session, and records it in
+     * the manifest. If the archive already holds the same bytes, the new
+     * copy is dropped.
+     */
+    @Override
+    public void commit(Host host, int index) throws IOException {
+        Received image = received.remove(key(host, index));
+        if (image == null) {
+            throw new IOException(String.format(
+                    "Image %d from %s has not been received.", 
+                    index, host.getAddress()));
+        }
+        Path partPath = getPartPath(host, index);
+        long start = System.nanoTime();
+        String hash = image.hash;
+        long length = image.length;
+        long writing = image.writing;
+        Path objectPath = objectsPath.resolve(hash.substring(0, 2))
+                                                .resolve(hash + ".jpg");
+        Files.createDirectories(objectPath.getParent());
+        if (!Files.exists(objectPath)) {
+            // Linking refuses to replace an existing object, where a rename
+            // would silently replace it, so two transfers of the same
+            // image at once still leave a single object.
+            try {
+                Files.createLink(objectPath, partPath);
+            } catch (FileAlreadyExistsException e) {
+                // Archived by another transfer in the meantime.
+            } catch (IOException | UnsupportedOperationException e) {
+                try {
+                    Files.move(partPath, objectPath);
+                } catch (FileAlreadyExistsException again) {
+                    // Archived by another transfer in the meantime.
+                }
+            }
+        }
+        Files.deleteIfExists(partPath);
+        objects.put(key(host, index), objectPath);
+        link(host, index, objectPath);
+        String entry = String.format("%s\t%s\t%d\t%s\t%d\n", host.getName(),
+                                    host.getAddress(), index, hash, length);
+        synchronized (this) {
+            Files.write(sessionPath.resolve(MANIFEST), 
+                    entry.getBytes(StandardCharsets.UTF_8), 
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        metrics.record(CaptureMetrics.Metric.STORE_WRITE, host, 
+                                    writing + System.nanoTime() - start);
+    }
+
+    private void link(Host host, int index, Path objectPath) 
+                                                        throws IOException {
+        Path imagePath = getImagePath(host, index);
+        Files.deleteIfExists(imagePath);
+        try {
+            Files.createLink(imagePath, objectPath);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(objectPath, imagePath);
+        }
+    }
+
+    /**
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @return where the complete image is linked into the session.
+     */
+    public Path getImagePath(Host host, int index) {
+        return getPartPath(host, index).resolveSibling(index + ".jpg");
+    }
+
+    private Path getPartPath(Host host, int index) {
+        return sessionPath.resolve(getDirectory(host))
+                                                .resolve(index + ".part");
+    }
+
+    /**
+     * @param host an image server.
+     * @return the name of the host's directory within a session.
+     */
+    static String getDirectory(Host host) {
+        return (host.getName() + "@" + host.getAddress())
+                                    .replaceAll("[^A-Za-z0-9._@-]", "_");
+    }
+
+    private static String key(Host host, int index) {
+        return host.getAddress() + "#" + index;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public Path getSessionPath() {
+        return sessionPath;
+    }
+
+    /**
+     * What is known of an image held in full as a partial file, until it
+     * is committed.
+     */
+    private static class Received {
+        
+        private final String hash;
+        private final long length;
+        private final long writing;
+
+        Received(String hash, long length, long writing) {
+            this.hash = hash;
+            this.length = length;
+            this.writing = writing;
+        }
+    }
+    
+}
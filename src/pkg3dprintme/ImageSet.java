@@ -16,28 +16,105 @@
  */
 package pkg3dprintme;
 
-import javafx.scene.image.Image;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * An image set maps each ImageServer address to the images it returned.
+ * Image servers are drained concurrently, so the set is safe to fill from
+ * several transfer threads at once.
+ * 
+ * Images are kept as the compressed JPEG bytes the ImageServer sent, in
+ * pooled direct buffers outside the heap. Decoding is left to the view
+ * that shows an image, so the set itself needs no display toolkit, and
+ * release returns the buffers to the pool once the set is no longer
+ * needed. The pool keeps only enough buffers for one preview, four
+ * camera images of up to 4 MiB; a larger set allocates the rest, and
+ * they are left to the collector once released.
  *
  * @author Kieran
  */
-public class ImageSet {
+public class ImageSet implements ImageSink {
     
-    private final HashMap<String,ArrayList<Image>> imageSet;
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    private static final int PREVIEW_IMAGES = 4;
+    private static final int IMAGE_SEGMENTS = 16;
+    private static final BufferPool POOL = new BufferPool(SEGMENT_SIZE, 
+                                        PREVIEW_IMAGES * IMAGE_SEGMENTS);
+    
+    private final ConcurrentHashMap<String,CopyOnWriteArrayList<EncodedImage>> imageSet;
     
     public ImageSet() {
-        imageSet = new HashMap<>();
+        imageSet = new ConcurrentHashMap<>();
     }
-    
-    public void add(String address, ArrayList<Image> images) {
-        imageSet.put(address, images);
+
+    @Override
+    public void receive(Host host, int index, ReadableByteChannel source, 
+                                        long length) throws IOException {
+        EncodedImage image = EncodedImage.read(POOL, source, length);
+        CopyOnWriteArrayList<EncodedImage> images = imageSet.computeIfAbsent(
+                host.getAddress(), (address) -> new CopyOnWriteArrayList<>());
+        synchronized (images) {
+            while (images.size() <= index) {
+                images.add(null);
+            }
+            EncodedImage previous = images.set(index, image);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+    }
+
+    /**
+     * @return the addresses of the image servers in the set.
+     */
+    public Set<String> getAddresses() {
+        return Collections.unmodifiableSet(imageSet.keySet());
+    }
+
+    /**
+     * @param address the address of an image server.
+     * @return the number of images received from that image server, not
+     *         counting the gaps left for images still to arrive.
+     */
+    public int size(String address) {
+        CopyOnWriteArrayList<EncodedImage> images = imageSet.get(address);
+        if (images == null) {
+            return 0;
+        }
+        int size = 0;
+        for (EncodedImage image : images) {
+            if (image != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param address the address of an image server.
+     * @param index the position of the image within the host's payload.
+     * @return the encoded image, or null if there is none.
+     */
+    public EncodedImage getEncoded(String address, int index) {
+        CopyOnWriteArrayList<EncodedImage> images = imageSet.get(address);
+        return images == null || index >= images.size() 
+                ? null : images.get(index);
     }
 
-    public ArrayList<Image> get(String address) {
-        return imageSet.get(address);
+    /**
+     * This function returns every buffer in the set to the pool. The set
+     * is empty afterwards.
+     */
+    public void release() {
+        imageSet.values().forEach((images) -> images.stream()
+                .filter((image) -> image != null)
+                .forEach(EncodedImage::release));
+        imageSet.clear();
     }
     
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An image sink consumes images as they are streamed from an ImageServer.
+ * Sinks are called from the transfer threads, one thread per host, so an
+ * implementation must tolerate calls for different hosts at the same time.
+ * 
+ * A sink that keeps partial images, such as one writing to disk, can let
+ * an interrupted transfer resume from where it stopped by reporting how
+ * much of each image it already holds.
+ * 
+ * An image is only known to be good once it has been checked end to end
+ * against the checksum the ImageServer sent, which happens after the sink
+ * has consumed it. The sink is told when that check passes, and should
+ * not treat an image as delivered before then.
+ *
+ * @author Kieran
+ */
+interface ImageSink {
+
+    /**
+     * Consumes exactly length bytes of JPEG data from the source.
+     * 
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @param source the channel positioned at the start of the image.
+     * @param length the number of bytes that make up the image.
+     * @throws IOException 
+     */
+    void receive(Host host, int index, ReadableByteChannel source, long length)
+                                                        throws IOException;
+
+    /**
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @return the number of bytes of the image already held, from which a
+     *         transfer may resume; zero if the sink cannot resume.
+     * @throws IOException 
+     */
+    default long getOffset(Host host, int index) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Consumes the rest of an image whose first offset bytes are already
+     * held. Only called when getOffset has returned a non-zero offset.
+     * 
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @param source the channel positioned at offset within the image.
+     * @param offset the number of bytes already held.
+     * @param length the number of bytes that make up the whole image.
+     * @throws IOException 
+     */
+    default void resume(Host host, int index, ReadableByteChannel source, 
+                            long offset, long length) throws IOException {
+        throw new IOException("This sink cannot resume an image.");
+    }
+
+    /**
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @return the CRC32 of the image as held, to check a resumed image
+     *         end to end.
+     * @throws IOException 
+     */
+    default int checksum(Host host, int index) throws IOException {
+        throw new IOException("This sink cannot check an image.");
+    }
+
+    /**
+     * Called once an image consumed by receive or resume has passed its
+     * end to end check, before it is acknowledged. An image that fails
+     * the check is never committed; it is received again from the start.
+     * 
+     * @param host the image server the image came from.
+     * @param index the position of the image within the host's payload.
+     * @throws IOException 
+     */
+    default void commit(Host host, int index) throws IOException {
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JPEG info is what the post-capture checks learn from an image's bytes
+ * without decoding it: whether the marker structure is whole from the
+ * start of image to the end of image, the dimensions from the frame
+ * header, and the capture time from the EXIF block, if the camera wrote
+ * one. Every offset is bounds checked, so a truncated or corrupt image
+ * yields a problem rather than an exception.
+ *
+ * @author Kieran
+ */
+class JpegInfo {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+    private String problem;
+    private int width;
+    private int height;
+    private String timestamp;
+
+    private JpegInfo() {
+    }
+
+    /**
+     * This function walks the marker segments of an image, through every
+     * scan, to the end of image marker.
+     * 
+     * @param data the whole image.
+     * @return what was learnt of the image.
+     */
+    public static JpegInfo parse(byte[] data) {
+        JpegInfo info = new JpegInfo();
+        info.problem = info.walk(data);
+        return info;
+    }
+
+    private String walk(byte[] data) {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF 
+                            || (data[1] & 0xFF) != SOI) {
+            return "missing start of image";
+        }
+        int pos = 2;
+        boolean scanned = false;
+        while (true) {
+            if (pos >= data.length || (data[pos] & 0xFF) != 0xFF) {
+                return pos >= data.length 
+                        ? "truncated before end of image" 
+                        : "expected a marker at byte " + pos;
+            }
+            while (pos < data.length && (data[pos] & 0xFF) == 0xFF) {
+                pos++;
+            }
+            if (pos >= data.length) {
+                return "truncated before end of image";
+            }
+            int marker = data[pos++] & 0xFF;
+            if (marker == EOI) {
+                return scanned ? null : "no image data";
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            if (pos + 2 > data.length) {
+                return "truncated marker segment";
+            }
+            int length = u16(data, pos, false);
+            if (length < 2 || pos + length > data.length) {
+                return "truncated marker segment";
+            }
+            if (marker == APP1 && timestamp == null) {
+                timestamp = readExif(data, pos + 2, pos + length);
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                            && marker != 0xC8 && marker != 0xCC
+                            && length >= 7) {
+                height = u16(data, pos + 3, false);
+                width = u16(data, pos + 5, false);
+            }
+            pos += length;
+            if (marker == SOS) {
+                scanned = true;
+                pos = skipScan(data, pos);
+                if (pos < 0) {
+                    return "truncated image data";
+                }
+            }
+        }
+    }
+
+    /**
+     * This function skips entropy coded data, in which 0xFF is followed by
+     * a stuffed zero, a restart marker or fill, up to the next marker.
+     * 
+     * @return the offset of the next marker, or -1 if there is none.
+     */
+    private static int skipScan(byte[] data, int pos) {
+        while (pos + 1 < data.length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                pos++;
+                continue;
+            }
+            int next = data[pos + 1] & 0xFF;
+            if (next == 0x00 || (next >= 0xD0 && next <= 0xD7)) {
+                pos += 2;
+            } else if (next == 0xFF) {
+                pos++;
+            } else {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This function reads the capture time from an APP1 segment holding
+     * EXIF data: the original date and time from the EXIF directory, or
+     * failing that the date and time from the first directory.
+     * 
+     * @return the time as an ISO local date-time, or null if there is none.
+     */
+    private static String readExif(byte[] data, int start, int end) {
+        byte[] header = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        if (end - start < header.length + 8) {
+            return null;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (data[start + i] != header[i]) {
+                return null;
+            }
+        }
+        int tiff = start + header.length;
+        boolean little = data[tiff] == 'I' && data[tiff + 1] == 'I';
+        if (!little && !(data[tiff] == 'M' && data[tiff + 1] == 'M')) {
+            return null;
+        }
+        long first = u32(data, tiff + 4, little);
+        String original = null;
+        long exif = find(data, tiff, end, first, TAG_EXIF_IFD, little);
+        if (exif >= 0) {
+            original = readAscii(data, tiff, end, 
+                    find(data, tiff, end, exif, TAG_DATE_TIME_ORIGINAL, 
+                                                            little), little);
+        }
+        if (original == null) {
+            original = readAscii(data, tiff, end, 
+                    find(data, tiff, end, first, TAG_DATE_TIME, little), 
+                                                                    little);
+        }
+        if (original == null || !original.matches(
+                            "\\d{4}:\\d{2}:\\d{2} \\d{2}:\\d{2}:\\d{2}")) {
+            return null;
+        }
+        return original.substring(0, 10).replace(':', '-') 
+                                    + "T" + original.substring(11);
+    }
+
+    /**
+     * This function finds a tag in an image file directory.
+     * 
+     * @return the offset, from the TIFF header, of the tag's directory
+     *         entry, or -1 if the directory does not hold the tag.
+     */
+    private static long find(byte[] data, int tiff, int end, long ifd, 
+                                                int tag, boolean little) {
+        if (ifd < 8 || tiff + ifd + 2 > end) {
+            return -1;
+        }
+        int count = u16(data, (int) (tiff + ifd), little);
+        for (int i = 0; i < count; i++) {
+            long entry = ifd + 2 + 12L * i;
+            if (tiff + entry + 12 > end) {
+                return -1;
+            }
+            if (u16(data, (int) (tiff + entry), little) == tag) {
+                return tag == TAG_EXIF_IFD 
+                        ? u32(data, (int) (tiff + entry + 8), little) : entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This function reads an ASCII value from a directory entry.
+     * 
+     * @return the value without its terminator, or null if the entry is
+     *         missing or not ASCII.
+     */
+    private static String readAscii(byte[] data, int tiff, int end, 
+                                                long entry, boolean little) {
+        if (entry < 0 || u16(data, (int) (tiff + entry + 2), little) != 2) {
+            return null;
+        }
+        long count = u32(data, (int) (tiff + entry + 4), little);
+        long offset = count <= 4 
+                ? entry + 8 : u32(data, (int) (tiff + entry + 8), little);
+        if (count < 1 || tiff + offset + count > end) {
+            return null;
+        }
+        return new String(data, (int) (tiff + offset), (int) count - 1, 
+                                            StandardCharsets.US_ASCII);
+    }
+
+    private static int u16(byte[] data, int pos, boolean little) {
+        int a = data[pos] & 0xFF;
+        int b = data[pos + 1] & 0xFF;
+        return little ? b << 8 | a : a << 8 | b;
+    }
+
+    private static long u32(byte[] data, int pos, boolean little) {
+        long high = u16(data, little ? pos + 2 : pos, little);
+        long low = u16(data, little ? pos : pos + 2, little);
+        return high << 16 | low;
+    }
+
+    /**
+     * @return whether the image is whole, from start to end of image.
+     */
+    public boolean isValid() {
+        return problem == null;
+    }
+
+    /**
+     * @return what is wrong with the image, or null if it is whole.
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the capture time recorded by the camera, as an ISO local
+     *         date-time, or null if it did not record one.
+     */
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+/**
+ * A metric snapshot is a summary of one metric, for one host or for the
+ * whole rig, in the metric's display unit. Snapshots are what the metrics
+ * expose over JMX and write to CSV.
+ *
+ * @author Kieran
+ */
+public class MetricSnapshot {
+    
+    static final String CSV_HEADER 
+            = "metric,host,unit,count,mean,min,p50,p90,p99,max";
+    
+    private final String metric;
+    private final String host;
+    private final String unit;
+    private final long count;
+    private final double mean;
+    private final double min;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double max;
+
+    public MetricSnapshot(String metric, String host, String unit, 
+            long count, double mean, double min, double p50, double p90, 
+                                            double p99, double max) {
+        this.metric = metric;
+        this.host = host;
+        this.unit = unit;
+        this.count = count;
+        this.mean = mean;
+        this.min = min;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    /**
+     * @return the address of the host, or an empty string for a metric of
+     *         the whole rig.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP90() {
+        return p90;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return the snapshot as a line of CSV, in the order of CSV_HEADER.
+     */
+    public String toCsv() {
+        return String.format("%s,%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                metric, host, unit, count, mean, min, p50, p90, p99, max);
+    }
+    
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The multicast trigger fires a whole rig with a single datagram. The
+ * datagram carries a trigger id and, for every host, the capture time on
+ * that host's own clock, and is sent to the group address the
+ * ImageServers listen on. Every host therefore learns its capture time at
+ * the same moment, however many hosts there are. Each host answers with a
+ * TRIGGER_ACK datagram; hosts that have not answered by the ack timeout
+ * are left for the caller to trigger over their control connections.
+ * 
+ * A datagram holds no more than MAX_DATAGRAM bytes, so that it fits in a
+ * single Ethernet frame and is never fragmented, even over IPv6 with its
+ * larger headers; a larger rig is sent a few datagrams back to back. The
+ * hosts are split by the size of their entries, since an IPv6 entry takes
+ * nearly twice the room of an IPv4 one.
+ *
+ * @author Kieran
+ */
+class MulticastTrigger {
+
+    private static final int MAX_DATAGRAM = 1500 - 40 - 8;
+    private static final int TIME_TO_LIVE = 4;
+
+    private final InetAddress group;
+    private final int port;
+    private final byte[] ack;
+    private MulticastSocket socket;
+
+    /**
+     * @param group the address the trigger is sent to, normally a
+     *              multicast group.
+     * @param port the port the ImageServers listen for triggers on.
+     */
+    public MulticastTrigger(InetAddress group, int port) {
+        this.group = group;
+        this.port = port;
+        ack = new byte[FrameChannel.HEADER_SIZE + 8];
+    }
+
+    /**
+     * This function sends a trigger to every host in the list and waits
+     * for their acknowledgements.
+     * 
+     * @param id the trigger id, which the hosts acknowledge and which
+     *           identifies the capture over their control connections.
+     * @param hosts the hosts to be triggered.
+     * @param times the capture time of each host, on its own clock.
+     * @param timeout the longest time to wait for acknowledgements, in 
+     *                milliseconds.
+     * @return the addresses of the hosts that acknowledged the trigger.
+     * @throws IOException if the trigger could not be sent.
+     */
+    public synchronized Set<String> fire(long id, List<Host> hosts, 
+                        long[] times, long timeout) throws IOException {
+        if (socket == null) {
+            socket = new MulticastSocket();
+            socket.setTimeToLive(TIME_TO_LIVE);
+        }
+        Set<String> expected = new HashSet<>();
+        InetAddress[] resolved = new InetAddress[hosts.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = InetAddress.getByName(hosts.get(i).getAddress());
+            expected.add(resolved[i].getHostAddress());
+        }
+        int first = 0;
+        while (first < resolved.length) {
+            int size = FrameChannel.TRIGGER_SIZE 
+                    + FrameChannel.triggerEntrySize(resolved[first]);
+            int end = first + 1;
+            while (end < resolved.length && size 
+                    + FrameChannel.triggerEntrySize(resolved[end]) 
+                                                        <= MAX_DATAGRAM) {
+                size += FrameChannel.triggerEntrySize(resolved[end]);
+                end++;
+            }
+            ByteBuffer frame = FrameChannel.encodeTrigger(id, 
+                    Arrays.copyOfRange(resolved, first, end),
+                    Arrays.copyOfRange(times, first, end));
+            socket.send(new DatagramPacket(frame.array(), frame.limit(), 
+                                                            group, port));
+            first = end;
+        }
+        Set<String> acked = new HashSet<>();
+        long deadline = System.nanoTime() 
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (acked.size() < expected.size()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(
+                                        deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            DatagramPacket packet = new DatagramPacket(ack, ack.length);
+            socket.setSoTimeout((int) remaining);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            try {
+                ByteBuffer payload = FrameChannel.openDatagram(ByteBuffer.wrap(
+                        ack, 0, packet.getLength()), FrameChannel.TRIGGER_ACK);
+                String address = packet.getAddress().getHostAddress();
+                if (payload.getLong() == id && expected.contains(address)) {
+                    acked.add(address);
+                }
+            } catch (ProtocolException e) {
+                // Not an acknowledgement; ignore it.
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * This function closes the socket. The next trigger opens it again.
+     */
+    public synchronized void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+}
@@ -17,16 +17,36 @@
 package pkg3dprintme;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** 
 * The NetworkController class contains all of the back-end logic of the
@@ -37,15 +57,39 @@ import java.util.ArrayList;
 */
 class NetworkController {
     
-    private static final int MAX_PIS = 10;
+    static final int MAX_PIS = Integer.getInteger("pkg3dprintme.hosts", 10);
     private static final int COUNTDOWN = 3000;
-    private String SERVER_IP;
+    private static final int MAX_TRANSFERS = 64;
+    private static final int MAX_PROBES = 32;
+    private static final int GROUP_SIZE = 32;
+    static final String TRIGGER_GROUP = "239.255.3.3";
+    private static final int TRIGGER_ACK_TIMEOUT = 200;
+    private static final boolean MULTICAST 
+            = Boolean.parseBoolean(System.getProperty(
+                                        "pkg3dprintme.multicast", "true"));
+    private static final boolean CONTAINER 
+            = Boolean.getBoolean("pkg3dprintme.container");
+    private static final int TRANSFER_TIMEOUT = 30000;
+    private static final int RESUME_ATTEMPTS = 3;
+    private static final int DISCOVERY_TIMEOUT = 5000;
+    private static final int SYNC_SAMPLES = 16;
+    private static final int SYNC_TIMEOUT = 3000;
     private int UDP_PORT;
     private int TCP_PORT;
-    private DatagramSocket UDP_SOCKET;
-    private ServerSocket TCP_SOCKET;
+    private int REGISTRATION_PORT;
     private InetAddress BROADCAST_ADDRESS;
-    private boolean listening;
+    private HostRegistry HOST_REGISTRY;
+    private ConnectionPool CONNECTION_POOL;
+    private MulticastTrigger MULTICAST_TRIGGER;
+    private volatile CaptureReport lastReport;
+    private final AtomicLong captureId = new AtomicLong();
+    private final TransferScheduler TRANSFER_SCHEDULER;
+    private final ExecutorService ASYNC_EXECUTOR;
+    private final ScheduledExecutorService DEADLINE_EXECUTOR;
+    private final ExecutorService PROBE_EXECUTOR;
+    private final ExecutorService COORDINATOR_EXECUTOR;
+    private final ForkJoinPool PROCESSING_POOL;
+    private final CaptureMetrics METRICS = new CaptureMetrics();
 
     /**
      * The constructor for this class performs all of the required
@@ -54,108 +98,369 @@ class NetworkController {
      * @author Kieran Hannigan
      */
     public NetworkController() {
+        this("255.255.255.255", TRIGGER_GROUP, 8888, 12345, 12345, MAX_PIS);
+    }
+
+    /**
+     * This constructor points the controller at a network other than the
+     * booth's, such as the loopback ImageServer simulator. Triggers are
+     * sent to the announcement address.
+     * 
+     * @param broadcastAddress the address announcements are sent to.
+     * @param udpPort the port the ImageServers listen for announcements on.
+     * @param registrationPort the port the ImageServers register on.
+     * @param hostPort the port the ImageServers accept commands on.
+     * @param expectedHosts the number of ImageServers on the network.
+     */
+    NetworkController(String broadcastAddress, int udpPort, 
+            int registrationPort, int hostPort, int expectedHosts) {
+        this(broadcastAddress, broadcastAddress, udpPort, registrationPort, 
+                                                hostPort, expectedHosts);
+    }
+
+    /**
+     * This constructor points the controller at a network other than the
+     * booth's, such as the loopback ImageServer simulator.
+     * 
+     * @param broadcastAddress the address announcements are sent to.
+     * @param triggerAddress the address triggers are multicast to.
+     * @param udpPort the port the ImageServers listen for announcements 
+     *                and triggers on.
+     * @param registrationPort the port the ImageServers register on.
+     * @param hostPort the port the ImageServers accept commands on.
+     * @param expectedHosts the number of ImageServers on the network.
+     * @throws IllegalStateException if the registry, connection pool or
+     *         trigger cannot be started, such as when the registration
+     *         port is already taken.
+     */
+    NetworkController(String broadcastAddress, String triggerAddress, 
+            int udpPort, int registrationPort, int hostPort, 
+                                                    int expectedHosts) {
+        TRANSFER_SCHEDULER = new TransferScheduler(MAX_TRANSFERS);
+        ASYNC_EXECUTOR = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "network");
+            thread.setDaemon(true);
+            return thread;
+        });
+        DEADLINE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                (runnable) -> {
+                    Thread thread = new Thread(runnable, "deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        PROBE_EXECUTOR = Executors.newFixedThreadPool(MAX_PROBES, 
+                (runnable) -> {
+                    Thread thread = new Thread(runnable, "probe");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        COORDINATOR_EXECUTOR = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        PROCESSING_POOL = new ForkJoinPool(
+                Runtime.getRuntime().availableProcessors(), (pool) -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool
+                            .defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("process-" + thread.getPoolIndex());
+                    return thread;
+                }, null, false);
         try {
-            BROADCAST_ADDRESS = InetAddress.getByName("255.255.255.255");
-            UDP_PORT = 8888;
-            TCP_PORT = 12345;
-            listening = false;
+            BROADCAST_ADDRESS = InetAddress.getByName(broadcastAddress);
+            UDP_PORT = udpPort;
+            TCP_PORT = hostPort;
+            REGISTRATION_PORT = registrationPort;
+            HOST_REGISTRY = new HostRegistry(expectedHosts, BROADCAST_ADDRESS, 
+                                                UDP_PORT, REGISTRATION_PORT);
+            HOST_REGISTRY.start();
+            CONNECTION_POOL = new ConnectionPool(TCP_PORT);
+            MULTICAST_TRIGGER = new MulticastTrigger(
+                        InetAddress.getByName(triggerAddress), UDP_PORT);
+            METRICS.register(broadcastAddress + ":" + hostPort);
         } catch (Exception e) {
-            // TODO: Implement retries, error handling, and rethrowing
-            // Do not rethrow exceptions - display an alert and close
-            // the platform in these cases.
+            // A controller without its registry, connections or trigger
+            // cannot do anything, so whatever did start is stopped again
+            // and the failure is passed on to whoever is starting it.
+            try {
+                shutdown();
+            } catch (Exception again) {
+                e.addSuppressed(again);
+            }
+            throw new IllegalStateException(
+                    "The network controller could not start: " + e, e);
         }
     }
 
     /**
-     * This function announces the client machine's address on UDP broadcast.
-     * The image servers on the network will subsequently try to connect to
-     * the client to provide their connection information and status.
+     * This function stops the registry, closes every connection and stops
+     * the transfer threads. The controller cannot be used afterwards. It
+     * also stops what did start of a controller that failed to start.
      * 
-     * @author Siyuan Ji
-     * @author Kieran Hannigan
      * @throws java.lang.Exception
      */
-    private void announceAddress() throws Exception {
+    public void shutdown() throws Exception {
+        if (HOST_REGISTRY != null) {
+            HOST_REGISTRY.stop();
+        }
+        METRICS.unregister();
+        if (CONNECTION_POOL != null) {
+            CONNECTION_POOL.close();
+        }
+        if (MULTICAST_TRIGGER != null) {
+            MULTICAST_TRIGGER.close();
+        }
+        TRANSFER_SCHEDULER.shutdown();
+        ASYNC_EXECUTOR.shutdownNow();
+        DEADLINE_EXECUTOR.shutdownNow();
+        PROBE_EXECUTOR.shutdownNow();
+        COORDINATOR_EXECUTOR.shutdownNow();
+        PROCESSING_POOL.shutdownNow();
+    }
+
+    /**
+     * The fetch function asks image servers to send the images of a
+     * capture they have already taken again, without firing their
+     * shutters, and stores them as capture(name, date, path) would have.
+     * It is used to finish a capture whose transfer was interrupted. Each
+     * host is identified by address, and its capture by the shutter time
+     * it reported or, for a host whose reply was never read, by the id of
+     * the trigger that fired it. Each host resumes at the first image it had not yet
+     * delivered, from the end of whatever part of that image is already
+     * on disk. Hosts that are no longer connected, or that no longer hold
+     * the capture, fail the fetch once every other host has finished.
+     * The session is processed as by capture(name, date, path), including
+     * the images stored before the interruption.
+     * 
+     * @param name the name of the client/job.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @param trigger the id of the trigger that fired the capture, or 0 if
+     *                it is not known.
+     * @param shutters the host shutter time of the capture, or 0 if the
+     *                 host's reply was never read, by address.
+     * @param delivered the number of images each host had delivered in
+     *                  full, by address.
+     * @param listener the listener for progress events.
+     * @throws java.lang.Exception
+     */
+    public void fetch(String name, LocalDate date, String path, long trigger,
+            Map<String, Long> shutters, Map<String, Integer> delivered,
+                            CaptureListener listener) throws Exception {
+        ArrayList<Future<?>> transfers = new ArrayList<>();
+        HostList hostList = new HostList();
+        SessionProcessor processor = new SessionProcessor(
+                new ImageArchive(Paths.get(path), 
+                        Paths.get(path, name + "_" + date), METRICS), 
+                PROCESSING_POOL, METRICS, CONTAINER);
         try {
-            UDP_SOCKET = new DatagramSocket();
-            SERVER_IP = InetAddress.getLocalHost().getHostAddress();
-            byte[] buf = SERVER_IP.getBytes();
-            DatagramPacket announcement;
-            announcement = new DatagramPacket(buf, buf.length, 
-                                    BROADCAST_ADDRESS, UDP_PORT);
-            UDP_SOCKET.send(announcement);
-            UDP_SOCKET.close();
+            for (Host host : getLiveHosts().getAll()) {
+                if (shutters.containsKey(host.getAddress())) {
+                    hostList.add(host);
+                }
+            }
+            for (Host host : hostList.getAll()) {
+                transfers.add(TRANSFER_SCHEDULER.submit(host, () -> {
+                    TransferState state = TransferState.resume(trigger,
+                            shutters.get(host.getAddress()), 
+                            delivered.getOrDefault(host.getAddress(), 0));
+                    request(host, FrameChannel.FETCH, 0, processor, listener,
+                                                                    state);
+                    recordTransfer(host, state, state.getSent());
+                    listener.hostCompleted(host);
+                    return null;
+                }));
+            }
+            await(transfers);
+            if (hostList.size() < shutters.size()) {
+                Set<String> missing = new TreeSet<>(shutters.keySet());
+                hostList.getAll().forEach(
+                        (host) -> missing.remove(host.getAddress()));
+                throw new Exception(String.format(
+                        "%d of %d hosts are not connected: %s", 
+                        missing.size(), shutters.size(), missing));
+            }
+            reportDamage(processor.finish());
         } catch (Exception e) {
+            System.out.println(String.format(
+                    "Fetching %s_%s from %d hosts failed: %s", 
+                    name, date, shutters.size(), e));
+            transfers.forEach((transfer) -> transfer.cancel(true));
+            abort(hostList, e);
             throw e;
+        } finally {
+            processor.close();
         }
     }
-    
+
     /**
-     * This function accepts connections from the image servers and receives
-     * their connection information and status. This completes the initial
-     * polling/handshake stage of the protocol. From this point forward, the
-     * client is a true client, requesting images from each of the image servers
-     * as required.
+     * The burst function captures a series of synchronized frames from all
+     * of the ImageServers that are available, at a fixed interval, and
+     * stores each frame as its own set under the session directory
+     * (frame_000, frame_001, ...). The clocks are synchronized once for
+     * the whole burst. Each frame is processed as a capture's session is,
+     * with its own manifest, thumbnails and, if asked for, session
+     * container.
      * 
-     * @author Siyuan Ji
-     * @author Kieran Hannigan
-     * @return a host list containing the respondents' information.
+     * @param name the name of the client/job.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @param frames the number of frames to capture.
+     * @param interval the time between frames, in milliseconds.
+     * @param listener the listener for progress events.
+     * @return the shutter report of each frame, in order.
      * @throws java.lang.Exception
      */
-    private HostList receiveAddresses() throws Exception {
+    public ArrayList<CaptureReport> burst(String name, LocalDate date, 
+            String path, int frames, long interval, CaptureListener listener)
+                                                        throws Exception {
         HostList hostList;
-        hostList = new HostList();
-        listening = true;
-        System.out.println("Starting...");
-        new java.util.Timer().schedule( 
-            new java.util.TimerTask() {
-                @Override
-                public void run() {
-                    listening = false;
-                }
-            }, 
-            5000 // timeout
-        );
+        ArrayList<ImageSink> sinks = new ArrayList<>();
+        ArrayList<SessionProcessor> processors = new ArrayList<>();
+        ArrayList<CaptureReport> reports;
+        Path sessionPath = Paths.get(path, name + "_" + date);
+        METRICS.startSession();
         try {
-            while (listening) {
-                TCP_SOCKET = new ServerSocket(TCP_PORT);
-                TCP_SOCKET.setSoTimeout(3000);
-                System.out.println("Scanning...");
-                Socket client = TCP_SOCKET.accept();
-                System.out.println("Reading...");
-                InputStream piInputStream = client.getInputStream();
-                byte[] piInputStreamBuffer = new byte[1024];
-                int piInputStreamBufferLength;
-                piInputStreamBufferLength = piInputStream.read(piInputStreamBuffer);
-                String name = new String(piInputStreamBuffer, 0, 
-                                                  piInputStreamBufferLength);
-                String address = client.getInetAddress().getHostAddress();
-                hostList.add(new Host(name, address, "Connected"));
-                System.out.println(String.format("Received... %s %s", name, address));
-                if(!client.isClosed()) {
-                    client.close();
-                }
-                if(!TCP_SOCKET.isClosed()) {
-                    TCP_SOCKET.close();
+            if (frames < 1 || interval <= 0) {
+                throw new IllegalArgumentException(String.format(
+                        "A burst of %d frames %d ms apart is not possible.",
+                        frames, interval));
+            }
+            hostList = getLiveHosts();
+            if (!hostList.validate())  {
+                throw new Exception("No ImageServers are available.");
+            }
+            for (int i = 0; i < frames; i++) {
+                processors.add(new SessionProcessor(new ImageArchive(
+                        Paths.get(path), 
+                        sessionPath.resolve(String.format("frame_%03d", i)),
+                        METRICS), PROCESSING_POOL, METRICS, CONTAINER));
+            }
+            sinks.addAll(processors);
+            reports = snap(hostList, sync(hostList), sinks, 
+                    TimeUnit.MILLISECONDS.toNanos(interval), listener);
+            lastReport = reports.get(frames - 1);
+            captureId.incrementAndGet();
+            int damaged = 0;
+            for (SessionProcessor processor : processors) {
+                damaged += processor.finish();
+            }
+            reportDamage(damaged);
+        } catch(Exception e) {
+            System.out.println(String.format(
+                    "Burst of %d frames for %s_%s failed: %s", 
+                    frames, name, date, e));
+            throw e;
+        } finally {
+            for (SessionProcessor processor : processors) {
+                try {
+                    processor.close();
+                } catch (IOException e) {
+                    System.out.println("Session container not closed: " 
+                                                        + e.getMessage());
                 }
             }
-        } catch (Exception e) {
-            System.out.println("Timeout / Error.");
-            if(!TCP_SOCKET.isClosed()) {
-                    TCP_SOCKET.close();
+            writeMetrics(sessionPath);
+        }
+        return reports;
+    }
+
+    /**
+     * The getHostsAsync function runs getHosts on the network thread.
+     * 
+     * @return a future host list, which may be cancelled.
+     */
+    public CompletableFuture<HostList> getHostsAsync() {
+        return async(this::getHosts, 0);
+    }
+
+    /**
+     * The captureAsync function runs a capture on the network thread and
+     * reports its progress to the listener as each image and host
+     * finishes. Cancelling the future, or passing the deadline, aborts the
+     * capture and closes its connections.
+     * 
+     * @param name the name of the client/job.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @param listener the listener for progress events.
+     * @param timeout the deadline in milliseconds, or 0 for none.
+     * @return a future shutter report, which may be cancelled.
+     */
+    public CompletableFuture<CaptureReport> captureAsync(String name, 
+            LocalDate date, String path, CaptureListener listener, 
+                                                        long timeout) {
+        return async(() -> capture(name, date, path, listener), timeout);
+    }
+
+    /**
+     * The burstAsync function runs a burst on the network thread, in the
+     * same way as captureAsync.
+     * 
+     * @param name the name of the client/job.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @param frames the number of frames to capture.
+     * @param interval the time between frames, in milliseconds.
+     * @param listener the listener for progress events.
+     * @param timeout the deadline in milliseconds, or 0 for none.
+     * @return the future shutter report of each frame, which may be 
+     *         cancelled.
+     */
+    public CompletableFuture<ArrayList<CaptureReport>> burstAsync(
+            String name, LocalDate date, String path, int frames, 
+            long interval, CaptureListener listener, long timeout) {
+        return async(() -> burst(name, date, path, frames, interval, 
+                                                    listener), timeout);
+    }
+
+    /**
+     * The shootAsync function runs shoot(Host) on the network thread.
+     * 
+     * @param host the image server to poll.
+     * @param timeout the deadline in milliseconds, or 0 for none.
+     * @return a future image set, which may be cancelled.
+     */
+    public CompletableFuture<ImageSet> shootAsync(Host host, long timeout) {
+        return async(() -> shoot(host), timeout);
+    }
+
+    /**
+     * The async function runs a blocking call on the network thread. The
+     * returned future is completed with the call's result; cancelling it,
+     * or letting the deadline pass, interrupts the call.
+     * 
+     * @param call the blocking call.
+     * @param timeout the deadline in milliseconds, or 0 for none.
+     * @return the future result of the call.
+     */
+    private <T> CompletableFuture<T> async(Callable<T> call, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = ASYNC_EXECUTOR.submit(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
             }
+        });
+        if (timeout > 0) {
+            DEADLINE_EXECUTOR.schedule(() -> result.completeExceptionally(
+                    new TimeoutException("Deadline of " + timeout + " ms passed")),
+                    timeout, TimeUnit.MILLISECONDS);
         }
-        if(!TCP_SOCKET.isClosed()) {
-                    TCP_SOCKET.close();
-                }
-        System.out.println("Stopping.");
-        return hostList;
+        result.whenComplete((value, e) -> {
+            if (!task.isDone()) {
+                task.cancel(true);
+            }
+        });
+        return result;
     }
 
     /**
      * This function queries all available ImageServers for their IP
      * addresses using a UDP protocol broadcast, then builds a host list
-     * from the results.
+     * from the results. The registry keeps listening between calls, so
+     * this returns as soon as the expected hosts have answered.
      * 
      * @author Kieran Hannigan
      * @return a host list containing all of the respondents' information.
@@ -165,14 +470,32 @@ class NetworkController {
         HostList hostList;
         hostList = new HostList();
         try {
-            announceAddress();
-            hostList = receiveAddresses();
+            long start = System.nanoTime();
+            hostList = HOST_REGISTRY.discover(DISCOVERY_TIMEOUT);
+            METRICS.record(CaptureMetrics.Metric.DISCOVERY, null, 
+                                            System.nanoTime() - start);
         } catch (Exception e) {
             throw e;
         }
         return hostList;
     }
 
+    /**
+     * This function returns the hosts the registry currently knows to be
+     * alive, without a discovery round-trip. Discovery only runs if no
+     * host has registered yet.
+     * 
+     * @return a host list containing the live hosts.
+     * @throws java.lang.Exception
+     */
+    private HostList getLiveHosts() throws Exception {
+        HostList hostList = HOST_REGISTRY.getConnectedHosts();
+        if (hostList.size() == 0) {
+            hostList = getHosts();
+        }
+        return hostList;
+    }
+
     /**
      * The capture function captures images from all of the ImageServers
      * that are available, and then stores them to the file system. 
@@ -188,13 +511,72 @@ class NetworkController {
      */
     public void capture(String name, LocalDate date, String path) 
                                                         throws Exception {
-        ImageSet imageSet;
+        capture(name, date, path, CaptureListener.NONE);
+    }
+
+    /**
+     * This function captures in the same way as capture(name, date, path),
+     * reporting progress to the listener as each shutter fires and each
+     * image arrives.
+     * 
+     * @param name the name of the client/job.
+     * @param date the datetime of the job.
+     * @param path the path to save the job.
+     * @param listener the listener for progress events.
+     * @return the shutter report of the capture.
+     * @throws java.lang.Exception
+     */
+    public CaptureReport capture(String name, LocalDate date, String path,
+                            CaptureListener listener) throws Exception {
+        HostList hostList;
+        Path sessionPath = Paths.get(path, name + "_" + date);
+        METRICS.startSession();
         try {
-            imageSet = getImages();
-            storeImages(imageSet, path);
+            hostList = getLiveHosts();
+            if (!hostList.validate())  {
+                throw new Exception();
+            }
+            return storeImages(hostList, sessionPath, listener);
         } catch(Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
             throw e;
+        } finally {
+            writeMetrics(sessionPath);
+        }
+    }
+
+    /**
+     * @return the capture metrics, as published over JMX.
+     */
+    public CaptureMetricsMXBean getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * The writeMetrics function writes the metrics of the session that
+     * has just finished beside its images, whether or not it succeeded,
+     * since a failed session is the one most worth looking into.
+     * 
+     * @param sessionPath the directory of the session.
+     */
+    private void writeMetrics(Path sessionPath) {
+        try {
+            METRICS.writeCsv(sessionPath.resolve("metrics.csv"));
+        } catch (IOException e) {
+            System.out.println("Session metrics not written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This function reports the damaged images of a session that has
+     * been processed. They are listed in its session manifest.
+     * 
+     * @param damaged the number of images that are damaged.
+     */
+    private static void reportDamage(int damaged) {
+        if (damaged > 0) {
+            System.out.println(String.format(
+                    "%d images are damaged; see session.tsv.", damaged));
         }
     }
 
@@ -212,11 +594,11 @@ class NetworkController {
         ImageSet imageSet;
         imageSet = new ImageSet();
         try {
-            hostList = getHosts();
+            hostList = getLiveHosts();
             if (!hostList.validate())  {
                 throw new Exception();
             }
-            imageSet = shoot(hostList);
+            shoot(hostList, imageSet, CaptureListener.NONE);
         } catch(Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
             throw e;
@@ -225,17 +607,31 @@ class NetworkController {
     }
     
     /**
-     * The storeImages function saves images to the local file system.
+     * The storeImages function captures images from the given ImageServers
+     * and streams them straight to the local file system as they arrive.
+     * The JPEG bytes are never decoded, so a capture costs the same heap
+     * however many images it contains. Images go into the content-addressed
+     * archive under the save location, shared by every session saved
+     * there, so an image that is already archived costs no extra space.
+     * Each image is checked, thumbnailed and, if asked for, added to the
+     * session container as soon as it is stored, and the session manifest is
+     * written once the last image has landed.
      * 
      * @author Kieran Hannigan
-     * @param imageSet the images to be saved.
-     * @param savePath the path where the images should be saved.
+     * @param hostList the image servers to be captured.
+     * @param sessionPath the path where the images should be saved.
+     * @param listener the listener for progress events.
+     * @return the shutter report of the capture.
      * @throws java.lang.Exception
      */
-    private void storeImages(ImageSet imageSet, String savePath) 
-                                                        throws Exception{
-        try {
-            // TODO: implement image storing
+    private CaptureReport storeImages(HostList hostList, Path sessionPath, 
+                            CaptureListener listener) throws Exception{
+        try (SessionProcessor processor = new SessionProcessor(
+                new ImageArchive(sessionPath.getParent(), sessionPath, METRICS),
+                PROCESSING_POOL, METRICS, CONTAINER)) {
+            CaptureReport report = shoot(hostList, processor, listener);
+            reportDamage(processor.finish());
+            return report;
         } catch (Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
             throw e;
@@ -246,28 +642,51 @@ class NetworkController {
      * The shoot function coordinates requests to the ImageServers by 
      * first calling the sync function to build a table of delay 
      * adjustments, and then calling the snap function to issue a command 
-     * for the ImageServers to capture.
+     * for the ImageServers to capture. The shutter report of the capture
+     * is kept for getLastCaptureReport.
      * 
      * @author Kieran Hannigan
      * @param hostList the list of ImageServers
-     * @return the images captured.
+     * @param sink the destination for the images captured.
+     * @param listener the listener for progress events.
+     * @return the shutter report of the capture.
      * @throws java.lang.Exception
      */
-    private ImageSet shoot(HostList hostList) throws Exception {
-        ImageSet imageSet;
+    private CaptureReport shoot(HostList hostList, ImageSink sink, 
+                            CaptureListener listener) throws Exception {
         SyncTable syncTable;
-        imageSet = new ImageSet();
         try {
             syncTable = sync(hostList);
-            imageSet = snap(hostList, syncTable);
+            lastReport = snap(hostList, syncTable, sink, listener);
+            captureId.incrementAndGet();
         } catch (Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
             throw e;
         }
-
-        return imageSet;
+        return lastReport;
     }
     
+    /**
+     * This function returns the shutter report of the most recent
+     * synchronized capture.
+     * 
+     * @return the report, or null if nothing has been captured yet.
+     */
+    public CaptureReport getLastCaptureReport() {
+        return lastReport;
+    }
+
+    /**
+     * This function returns an id that changes with every synchronized
+     * capture, so that anything derived from a capture can tell when it
+     * has been superseded.
+     * 
+     * @return the id of the most recent capture.
+     */
+    public long getCaptureId() {
+        return captureId.get();
+    }
+
     /**
      * The shoot(Host) function captures Images from a single image server.
      * @param host the image server to poll
@@ -290,80 +709,305 @@ class NetworkController {
     }
 
     /**
-     * The sync function builds up a table of delays based on the time
-     * that it takes to reach each hosts.
+     * The sync function builds up a table of clock estimates, one for each
+     * host. Hosts are probed in parallel, each with a series of round
+     * trips, on a pool of their own so that probing never waits behind a
+     * transfer. Up to MAX_PROBES hosts are probed at once; a probe is a few
+     * milliseconds of small frames, so even a rig of hundreds of hosts
+     * syncs in a handful of rounds.
      * 
      * @author Kieran Hannigan
      * @param hostTable the hosts to be reached.
-     * @return a table of hosts and the time delay to each host.
+     * @return a table of hosts and the clock estimate for each host.
      * @throws java.lang.Exception
      */
-    private SyncTable sync(HostList hostTable) throws Exception {
+    SyncTable sync(HostList hostTable) throws Exception {
         SyncTable syncTable = new SyncTable();
-        Socket socket = new Socket();
-        long current;
-        long delay;
+        ArrayList<Future<?>> probes = new ArrayList<>();
         try {
-            ArrayList<Host> hosts = hostTable.getAll();
-            for (Host host : hosts) {
-                socket = new Socket(host.getAddress(), TCP_PORT);
-                socket.setSoTimeout(3000);
-                OutputStream os = socket.getOutputStream();
-                InputStream is = socket.getInputStream();
-                delay = 0;
-                current = System.nanoTime();
-                os.write("ping".getBytes());
-                if (is.available() != 0) {
-                    delay = (System.nanoTime() - current)/2;
-                }
-                syncTable.add(host, delay);
-                is.close();
-                if (!socket.isClosed()) {
-                    socket.close();
-                }
+            for (Host host : hostTable.getAll()) {
+                probes.add(PROBE_EXECUTOR.submit(() -> {
+                    syncTable.add(host, probe(host));
+                    return null;
+                }));
             }
+            await(probes);
         } catch (Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
-            if (!socket.isClosed()) {
-                socket.close();
-            }
+            probes.forEach((probe) -> probe.cancel(true));
+            abort(hostTable, e);
             throw e;
         }
         return syncTable;
     }
 
+    /**
+     * The probe function exchanges a series of pings with a single host
+     * over its pooled connection. The host answers each ping with the times, on
+     * its own clock, at which the ping arrived and the pong left.
+     * 
+     * @param host the host to be probed.
+     * @return the clock estimate for the host.
+     * @throws Exception 
+     */
+    private SyncEntry probe(Host host) throws Exception {
+        long[] sent = new long[SYNC_SAMPLES];
+        long[] hostReceived = new long[SYNC_SAMPLES];
+        long[] hostSent = new long[SYNC_SAMPLES];
+        long[] received = new long[SYNC_SAMPLES];
+        CONNECTION_POOL.get(host).call(SYNC_TIMEOUT, (channel) -> {
+            for (int i = 0; i < SYNC_SAMPLES; i++) {
+                sent[i] = System.nanoTime();
+                channel.writePing(sent[i]);
+                ByteBuffer pong = channel.expect(FrameChannel.PONG);
+                received[i] = System.nanoTime();
+                hostReceived[i] = pong.getLong();
+                hostSent[i] = pong.getLong();
+            }
+            return null;
+        });
+        SyncEntry entry 
+                = SyncEntry.estimate(sent, hostReceived, hostSent, received);
+        METRICS.record(CaptureMetrics.Metric.SYNC_RTT, host, entry.getDelay());
+        METRICS.set(CaptureMetrics.Metric.SYNC_OFFSET, host, entry.getOffset());
+        return entry;
+    }
+
     /**
      * The snap function commands a group of image servers to capture and
-     * return their payload at a given unified time.
+     * return their payload at a given unified time. The time is fixed once,
+     * COUNTDOWN from now on the client clock, and each host is sent that
+     * instant converted to its own clock, so the order and speed at which
+     * the commands go out does not affect when the shutters fire.
+     * 
+     * The listener is told of the trigger and every host it is sent to
+     * before any host is commanded, so that a capture interrupted before
+     * a reply has been read can still be fetched from every host.
+     * 
+     * Every image server is triggered first, and only then drained by the
+     * transfer scheduler, so the number of hosts that can be triggered in
+     * time does not depend on how many transfers run at once. The trigger
+     * goes to every host at once in a multicast datagram; the hosts that do
+     * not acknowledge it are sent it again over their control connections
+     * by the coordinators of the host groups. Each transfer then asks its
+     * host for the reply to the trigger. Each host holds its images until
+     * it is drained, and each image is handed to the sink as soon as it
+     * starts to arrive.
      * 
      * @author Kieran Hannigan
-     * @param syncTable the table of hosts and their addresses.
-     * @param syncTable the table of host delays.
-     * @return an image set containing all of the images.
+     * @param hostList the table of hosts and their addresses.
+     * @param syncTable the table of host clock estimates.
+     * @param sink the destination for the images.
+     * @param listener the listener for progress events.
+     * @return the shutter times each host reported.
      * @throws java.lang.Exception
      */
-    private ImageSet snap(HostList hostList, SyncTable syncTable) 
-                                                        throws Exception {
-        ImageSet imageSet = new ImageSet();
+    private CaptureReport snap(HostList hostList, SyncTable syncTable, 
+            ImageSink sink, CaptureListener listener) throws Exception {
+        ArrayList<Future<?>> transfers = new ArrayList<>();
+        long target = System.nanoTime() 
+                + TimeUnit.MILLISECONDS.toNanos(COUNTDOWN);
+        CaptureReport report = new CaptureReport(target);
+        long id = ThreadLocalRandom.current().nextLong();
+        HashMap<Host, TransferState> states = new HashMap<>();
+        for (Host host : hostList.getAll()) {
+            TransferState state = new TransferState();
+            state.setTrigger(id);
+            states.put(host, state);
+        }
         try {
-            long current = System.nanoTime();
+            listener.triggered(id, hostList.getAll());
+            long fanout = System.nanoTime();
+            Set<String> acked = multicast(id, hostList, syncTable, target);
+            HostList missed = new HostList();
+            hostList.getAll().stream()
+                    .filter((host) -> !acked.contains(host.getAddress()))
+                    .forEach(missed::add);
+            trigger(missed, (host, channel) -> {
+                states.get(host).markSent();
+                channel.writeTrigger(id, InetAddress.getByName(
+                        host.getAddress()), 
+                                syncTable.get(host).toHostTime(target));
+            });
+            METRICS.record(CaptureMetrics.Metric.TRIGGER_FANOUT, null, 
+                                            System.nanoTime() - fanout);
             for (Host host : hostList.getAll()) {
-                long captureOffset = COUNTDOWN - syncTable.get(host) - (System.nanoTime() - current);
-                /*
-                send("capture", captureOffset);
-                */
+                transfers.add(TRANSFER_SCHEDULER.submit(host, () -> {
+                    SyncEntry clock = syncTable.get(host);
+                    TransferState state = states.get(host);
+                    long shutter = clock.toLocalTime(request(host, 
+                            FrameChannel.TRIGGER, clock.toHostTime(target), 
+                                            sink, listener, state));
+                    report.add(host, shutter);
+                    METRICS.record(CaptureMetrics.Metric.TRIGGER_SKEW, host,
+                                            Math.abs(shutter - target));
+                    recordTransfer(host, state, shutter);
+                    listener.hostCompleted(host);
+                    return null;
+                }));
             }
-            // receive images
+            await(transfers);
         } catch (Exception e) {
-            // TODO: Implement retries, error handling, and rethrowing
+            System.out.println(String.format(
+                    "Capture from %d hosts failed with trigger %d: %s", 
+                    hostList.size(), id, e));
+            transfers.forEach((transfer) -> transfer.cancel(true));
+            abort(hostList, e);
             throw e;
         }
-        return imageSet;
+        return report;
     }
     
+    /**
+     * The snap function for bursts commands a group of image servers to
+     * capture a series of frames, the first at COUNTDOWN from now and the
+     * rest at the given interval after it. The whole schedule is sent to
+     * each host in a single BURST command, so each host fires on its own
+     * clock while earlier frames are still being transferred; the
+     * transfer of frame n overlaps the exposure of frame n+1, and the
+     * frame rate is limited by the cameras rather than by a round-trip per
+     * frame. Frames arrive in order, each as a SHUTTER frame followed by
+     * its images. As for a single capture, every host is commanded before
+     * any is drained.
+     * 
+     * @param hostList the table of hosts and their addresses.
+     * @param syncTable the table of host clock estimates.
+     * @param sinks the destination for each frame's images.
+     * @param interval the time between frames, in nanoseconds.
+     * @param listener the listener for progress events.
+     * @return the shutter times each host reported, one report per frame.
+     * @throws java.lang.Exception
+     */
+    private ArrayList<CaptureReport> snap(HostList hostList, 
+            SyncTable syncTable, ArrayList<ImageSink> sinks, long interval,
+                            CaptureListener listener) throws Exception {
+        ArrayList<Future<?>> transfers = new ArrayList<>();
+        ArrayList<CaptureReport> reports = new ArrayList<>();
+        long start = System.nanoTime() 
+                + TimeUnit.MILLISECONDS.toNanos(COUNTDOWN);
+        for (int i = 0; i < sinks.size(); i++) {
+            reports.add(new CaptureReport(start + i * interval));
+        }
+        try {
+            trigger(hostList, (host, channel) -> {
+                SyncEntry clock = syncTable.get(host);
+                long hostStart = clock.toHostTime(start);
+                long hostInterval 
+                        = clock.toHostTime(start + interval) - hostStart;
+                channel.writeBurst(hostStart, hostInterval, sinks.size());
+            });
+            for (Host host : hostList.getAll()) {
+                transfers.add(TRANSFER_SCHEDULER.submit(host, () -> {
+                    SyncEntry clock = syncTable.get(host);
+                    CONNECTION_POOL.get(host).collect(TRANSFER_TIMEOUT, 
+                                                        (channel) -> {
+                        for (int i = 0; i < sinks.size(); i++) {
+                            TransferState state = new TransferState();
+                            long shutter = clock.toLocalTime(receive(channel, 
+                                    host, sinks.get(i), listener, state, 0));
+                            reports.get(i).add(host, shutter);
+                            METRICS.record(CaptureMetrics.Metric.TRIGGER_SKEW,
+                                    host, Math.abs(shutter 
+                                            - reports.get(i).getTarget()));
+                            recordTransfer(host, state, shutter);
+                        }
+                        return null;
+                    });
+                    listener.hostCompleted(host);
+                    return null;
+                }));
+            }
+            await(transfers);
+        } catch (Exception e) {
+            System.out.println(String.format(
+                    "Burst of %d frames from %d hosts failed: %s", 
+                    sinks.size(), hostList.size(), e));
+            transfers.forEach((transfer) -> transfer.cancel(true));
+            abort(hostList, e);
+            throw e;
+        }
+        return reports;
+    }
+    
+    /**
+     * The multicast function sends a trigger datagram to every host in the
+     * list, with each host's capture time on its own clock.
+     * 
+     * @param id the trigger id.
+     * @param hostList the hosts to be triggered.
+     * @param syncTable the table of host clock estimates.
+     * @param target the capture time on the client clock.
+     * @return the addresses of the hosts that acknowledged the trigger,
+     *         which is none if multicast triggers are turned off or the
+     *         datagram could not be sent.
+     */
+    private Set<String> multicast(long id, HostList hostList, 
+                                    SyncTable syncTable, long target) {
+        if (!MULTICAST) {
+            return Collections.emptySet();
+        }
+        long[] times = new long[hostList.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = syncTable.get(hostList.get(i)).toHostTime(target);
+        }
+        try {
+            return MULTICAST_TRIGGER.fire(id, hostList.getAll(), times, 
+                                                    TRIGGER_ACK_TIMEOUT);
+        } catch (IOException e) {
+            // Every host is then triggered over its control connection.
+            System.out.println(String.format(
+                    "Multicast trigger %d to %d hosts failed: %s", 
+                    id, hostList.size(), e.getMessage()));
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * A trigger writes a command to a single host, leaving its reply to be
+     * read by a transfer.
+     */
+    private interface Trigger {
+        void send(Host host, FrameChannel channel) throws Exception;
+    }
+
+    /**
+     * The trigger function commands every host in the list without
+     * waiting for any replies. The hosts are split into groups by subnet,
+     * and each group has a coordinator of its own that commands its hosts
+     * one after another, so triggering takes as long as the largest group
+     * rather than as long as the whole rig. Each connection is reserved
+     * afterwards, until its transfer reads the reply.
+     * 
+     * @param hostList the hosts to be commanded.
+     * @param trigger the command to send to each host.
+     * @throws Exception 
+     */
+    private void trigger(HostList hostList, Trigger trigger) throws Exception {
+        ArrayList<Future<?>> coordinators = new ArrayList<>();
+        try {
+            for (HostGroup group : HostGroup.partition(hostList, GROUP_SIZE)) {
+                coordinators.add(COORDINATOR_EXECUTOR.submit(() -> {
+                    for (Host host : group.getHosts().getAll()) {
+                        CONNECTION_POOL.get(host).send(SYNC_TIMEOUT, 
+                                                        (channel) -> {
+                            trigger.send(host, channel);
+                            return null;
+                        });
+                    }
+                    return null;
+                }));
+            }
+            await(coordinators);
+        } catch (Exception e) {
+            coordinators.forEach((coordinator) -> coordinator.cancel(true));
+            throw e;
+        }
+    }
+
     /**
      * The snap(Host) commands a given image server to capture and deliver
-     * its images.
+     * its images. A preview is waited on by the operator, so it runs ahead
+     * of any capture transfers still queued.
      * 
      * @author Kieran Hannigan
      * @param host the image server to be polled.
@@ -373,21 +1017,318 @@ class NetworkController {
     private ImageSet snap(Host host) throws Exception {
         ImageSet imageSet = new ImageSet();
         try {
-            // TODO: Capture images from ImageServers
+            // A capture time of zero asks the host to capture immediately.
+            TransferState state = new TransferState();
+            TRANSFER_SCHEDULER.priority(host, () -> request(host, 
+                    FrameChannel.PREVIEW, 0, imageSet, CaptureListener.NONE, 
+                                                                state));
+            recordTransfer(host, state, state.getSent());
         } catch (Exception e) {
             // TODO: Implement retries, error handling, and rethrowing
             throw e;
         }
         return imageSet;
     }
+
+    /**
+     * The request function sends a single command to an image server over
+     * its pooled connection and streams the images it replies with into
+     * the sink. The command carries the capture time on the host's clock,
+     * in nanoseconds; the reply is a SHUTTER frame with the host time at
+     * which the shutter actually fired and the image count, followed by
+     * the chunk frames of each image. Each image is acknowledged once it
+     * has been consumed.
+     * 
+     * A command that has already been sent by a trigger is not sent again,
+     * and only its reply is read.
+     * 
+     * If the transfer fails once the host has fired, the command is not
+     * sent again. Instead a ranged FETCH asks the host for the rest of the
+     * capture, from the first image not yet delivered and from the end of
+     * what the sink already holds of it, over a new connection. Only a
+     * failed image's missing bytes are sent again, not the whole capture.
+     * 
+     * @param host the image server to be commanded.
+     * @param command the command frame type, TRIGGER, CAPTURE, PREVIEW or
+     *                FETCH; a TRIGGER carries the transfer state's trigger
+     *                id.
+     * @param captureTime the host time at which to capture.
+     * @param sink the destination for the images returned.
+     * @param listener the listener for the shutter event.
+     * @param state the progress of the transfer, which is started already
+     *              for a FETCH.
+     * @return the host time at which the shutter fired.
+     * @throws Exception 
+     */
+    private long request(Host host, byte command, long captureTime,
+            ImageSink sink, CaptureListener listener, TransferState state) 
+                                                        throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            HostConnection connection = CONNECTION_POOL.get(host);
+            boolean owed = state.getSent() != 0 && !state.isStarted();
+            try {
+                HostConnection.Exchange<Long> exchange = (channel) -> {
+                    long offset = 0;
+                    if (state.isStarted()) {
+                        state.markSent();
+                        if (!state.isRestart()) {
+                            offset = sink.getOffset(host, state.getIndex());
+                        }
+                        channel.writeFetch(state.getShutter(), 
+                                state.getTrigger(), state.getIndex(), offset);
+                    } else if (state.getSent() == 0) {
+                        state.markSent();
+                        if (command == FrameChannel.TRIGGER) {
+                            channel.writeTrigger(state.getTrigger(), 
+                                    InetAddress.getByName(host.getAddress()),
+                                                            captureTime);
+                        } else {
+                            channel.writeCommand(command, captureTime);
+                        }
+                    }
+                    return receive(channel, host, sink, listener, state, 
+                                                                offset);
+                };
+                return owed ? connection.collect(TRANSFER_TIMEOUT, exchange)
+                            : connection.call(TRANSFER_TIMEOUT, exchange);
+            } catch (IOException e) {
+                // Only a host that has fired can be asked for the rest of
+                // its capture; anything else is the caller's to handle.
+                if (!state.isStarted() || attempt >= RESUME_ATTEMPTS 
+                        || Thread.currentThread().isInterrupted()) {
+                    System.out.println(String.format(
+                            "Transfer from %s failed after %d attempts: %s",
+                            host.getAddress(), attempt, e));
+                    throw e;
+                }
+                System.out.println(String.format(
+                        "Resuming %s at image %d: %s", host.getAddress(), 
+                        state.getIndex(), e));
+            }
+        }
+    }
+
+    /**
+     * The receive function reads one frame's reply from an image server:
+     * the SHUTTER frame, then each image from the transfer state's first
+     * undelivered image on, acknowledging each once it has been consumed
+     * and checked end to end against the checksum in the SHUTTER frame.
+     * The listener is only told of an image once it has passed that check
+     * and been acknowledged, so an image that failed it is never recorded
+     * as delivered.
+     * The first image starts at the given offset when resuming.
+     * 
+     * @param channel the connection to the image server.
+     * @param host the image server replying.
+     * @param sink the destination for the images.
+     * @param listener the listener for the shutter and image events.
+     * @param state the progress of the transfer.
+     * @param offset the offset the first image resumes from.
+     * @return the host time at which the shutter fired.
+     * @throws IOException 
+     */
+    private long receive(FrameChannel channel, Host host, ImageSink sink,
+            CaptureListener listener, TransferState state, long offset) 
+                                                        throws IOException {
+        ByteBuffer reply = channel.expect(FrameChannel.SHUTTER);
+        state.markFirstByte();
+        long shutter = reply.getLong();
+        int count = reply.getInt();
+        long[] lengths = new long[count];
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            lengths[i] = reply.getLong();
+            checksums[i] = reply.getInt();
+        }
+        if (state.getShutter() != shutter) {
+            listener.shutterFired(host, shutter);
+        }
+        state.start(shutter, lengths, checksums);
+        int first = state.getIndex();
+        for (int i = first; i < count; i++) {
+            long from = i == first ? offset : 0;
+            FrameChannel.ImageChannel image = channel.openImage(i, from);
+            ReadableByteChannel source = TRANSFER_SCHEDULER.meter(image);
+            if (from == 0) {
+                sink.receive(host, i, source, image.length());
+            } else {
+                sink.resume(host, i, source, from, image.length());
+            }
+            image.drain();
+            int checksum = from == 0 
+                    ? image.checksum() : sink.checksum(host, i);
+            if (image.length() != state.getLength(i) 
+                                    || checksum != state.getChecksum(i)) {
+                state.restartImage();
+                throw new ProtocolException(String.format(
+                        "Image %d from %s failed its end to end check", 
+                        i, host.getAddress()));
+            }
+            sink.commit(host, i);
+            channel.writeAck(i, image.length());
+            state.addBytes(image.length() - from);
+            state.completed(i);
+            listener.imageReceived(host, i, image.length());
+        }
+        return shutter;
+    }
+
+    /**
+     * The recordTransfer function records how long a host took to start
+     * replying and how fast its images arrived.
+     * 
+     * @param host the image server.
+     * @param state the finished transfer.
+     * @param reference the client time from which the first byte is
+     *                  timed: the shutter for a capture, or the command
+     *                  for an immediate request.
+     */
+    private void recordTransfer(Host host, TransferState state, 
+                                                        long reference) {
+        METRICS.record(CaptureMetrics.Metric.TRANSFER_TTFB, host, 
+                                    state.getFirstByte() - reference);
+        METRICS.record(CaptureMetrics.Metric.TRANSFER_RATE, host, 
+                                                    state.getRate());
+    }
+
+    /**
+     * The abort function closes the connections to every host when an
+     * operation has been interrupted, so that threads blocked reading from
+     * those hosts give up at once rather than at their read timeout. A
+     * failed operation may also have triggered hosts whose replies will
+     * now never be read; those connections are discarded.
+     * 
+     * @param hostList the hosts the operation was talking to.
+     * @param cause the reason the operation stopped.
+     */
+    private void abort(HostList hostList, Exception cause) {
+        if (cause instanceof InterruptedException 
+                || Thread.currentThread().isInterrupted()) {
+            hostList.getAll().forEach(
+                    (host) -> CONNECTION_POOL.get(host).close());
+        } else {
+            hostList.getAll().forEach(
+                    (host) -> CONNECTION_POOL.get(host).discard());
+        }
+    }
+
+    /**
+     * The await function waits for every transfer to finish, then
+     * rethrows the first failure (if any) once all of them have settled.
+     * 
+     * @param transfers the transfers to wait for.
+     * @throws Exception 
+     */
+    private void await(ArrayList<Future<?>> transfers) throws Exception {
+        Exception failure = null;
+        for (Future<?> transfer : transfers) {
+            try {
+                transfer.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception
+                            ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+
+/* Pi connection pseudocode
+// The client keeps one connection open per Pi and sends every command
+// over it as a FrameChannel frame, one after another.
+register(name);  // REGISTER frame to the client's registration port
+while (type = channel.read()) {
+    dispatch(type);  // PING, CAPTURE, PREVIEW, TRIGGER, BURST or FETCH
 }
+*/
+
+/* Pi sync pseudocode
+receive(PING);
+received = System.nanoTime();
+writePong(received, System.nanoTime());
+*/
 
 /* Pi capture pseudocode
-receive("capture", captureOffset);
+receive(CAPTURE, captureTime);
+
+sleepUntil(captureTime - SPIN_MARGIN);  // coarse wait, leaves the CPU idle
+while (System.nanoTime() < captureTime) {
+    // spin only for the final SPIN_MARGIN
+}
+shutter = capture();  // System.nanoTime() when the exposure started
+writeShutter(shutter, lengths(images), crc32s(images));
+sendImages(images, 0, 0);
+
+sendImages(images, first, from) {
+    for (index = first; index < images.size(); index++) {
+        image = images.get(index);
+        offset = index == first ? from : 0;
+        do {  // at least one chunk, which is empty if offset == length
+            chunk = image.slice(offset, min(CHUNK_SIZE, image.length - offset));
+            writeChunk(index, image.length, offset, chunk);
+            offset += chunk.length;
+        } while (offset < image.length);
+        receive(ACK, index, received);
+    }
+}
+*/
+
+/* Pi trigger pseudocode
+// The Pi listens for trigger datagrams on the announcement port, and is
+// joined to the trigger group. A datagram lists many hosts; the Pi only
+// acts on its own entry.
+datagram: receive(TRIGGER, id, entries) from client;
+if ((captureTime = entries.get(ownAddress)) != null) {
+    schedule(id, captureTime);  // the camera thread fires at captureTime
+    sendDatagram(client, TRIGGER_ACK, id);
+}
+
+// The same frame with a single entry arrives over the control connection
+// to collect the reply. It triggers the Pi first if the datagram was lost.
+control: receive(TRIGGER, id, entries);
+if (scheduled.id != id) {
+    schedule(id, entries.get(ownAddress));
+}
+images = awaitCapture(id);
+writeShutter(shutter, lengths(images), crc32s(images));
+sendImages(images, 0, 0);
+*/
+
+/* Pi burst pseudocode
+receive(BURST, start, interval, frames);
+
+// The camera runs on its own thread and queues each frame as it is taken,
+// so exposures stay on schedule however long the transfers take.
+camera: for (n = 0; n < frames; n++) {
+    sleepUntil(start + n * interval);
+    queue.put(capture());
+}
+sender: for (n = 0; n < frames; n++) {
+    frame = queue.take();
+    writeShutter(frame.shutter, lengths(frame.images), crc32s(frame.images));
+    sendImages(frame.images, 0, 0);
+}
+*/
 
-current = System.nanoTime();
-while((System.nanoTime - current) < captureOffset) {
-    // do nothing
+/* Pi fetch pseudocode
+// The Pi keeps the images of its most recent capture until the next one.
+// A FETCH may resume part way through the capture, from image first at
+// byte offset from. A capture whose reply was never read is asked for by
+// the id of the trigger that fired it, with a shutter time of 0. A FETCH
+// from just past the last image only repeats the SHUTTER frame.
+receive(FETCH, shutter, first, from, trigger);
+if (last == null || (shutter != 0 ? last.shutter != shutter 
+                                    : last.trigger != trigger)) {
+    writeError("Capture " + shutter + " is no longer held");
+} else if (first > last.images.size() || (first < last.images.size()
+        && from > last.images.get(first).length)) {
+    writeError("Range out of bounds");
+} else {
+    writeShutter(last.shutter, lengths(last.images), crc32s(last.images));
+    sendImages(last.images, first, from);
 }
-capture();
-*/
\ No newline at end of file
+*/
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import javafx.scene.image.Image;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The preview cache keeps the most recently viewed preview thumbnails,
+ * keyed by host and capture id, so that switching back to a host in the
+ * host table shows its previews at once instead of going back to the
+ * network. A new capture has a new id, so previews taken before it are
+ * never shown for it. The least recently viewed entries are evicted once
+ * the cache is full.
+ *
+ * @author Kieran
+ */
+class PreviewCache {
+    
+    private final int capacity;
+    private final LinkedHashMap<String, ArrayList<Image>> cache;
+
+    public PreviewCache(int capacity) {
+        this.capacity = capacity;
+        cache = new LinkedHashMap<String, ArrayList<Image>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                                Map.Entry<String, ArrayList<Image>> eldest) {
+                return size() > PreviewCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param host the host the previews came from.
+     * @param captureId the capture the previews belong to.
+     * @return the cached thumbnails, or null if there are none.
+     */
+    public synchronized ArrayList<Image> get(Host host, long captureId) {
+        return cache.get(key(host, captureId));
+    }
+
+    /**
+     * @param host the host the previews came from.
+     * @param captureId the capture the previews belong to.
+     * @param thumbnails the decoded thumbnails.
+     */
+    public synchronized void put(Host host, long captureId, 
+                                            ArrayList<Image> thumbnails) {
+        cache.put(key(host, captureId), thumbnails);
+    }
+
+    private static String key(Host host, long captureId) {
+        return host.getAddress() + "#" + captureId;
+    }
+    
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A session container holds every image of a capture session in a single
+ * file, so that a session can be copied, backed up and opened for review
+ * as one file rather than a directory of dozens. It is written beside the
+ * session directory, as &lt;session&gt;.3dpm, while the images arrive, and is
+ * read through a memory map, so a reader jumps straight to any image
+ * without walking the file system or copying the bytes.
+ * 
+ * The container is a copy: every image in it is also in the archive's
+ * deduplicated object store, so a session with a container takes twice
+ * the space on the capture disk. It is therefore only written when the
+ * pkg3dprintme.container system property is true.
+ * 
+ * The file is only ever appended to. It is a header followed by blocks,
+ * where every block but the image data is ENTRY_SIZE bytes:
+ * 
+ * <pre>
+ *   header    "3DPMSESS", version u16, entry size u16, reserved u32
+ *   image     an IMGE entry: host name, address, index, offset, length
+ *             and SHA-256, then the image bytes at that offset
+ *   index     one INDX entry per image, sorted by address and index
+ *   trailer   a TRLR block holding the offset and size of the index
+ * </pre>
+ * 
+ * The index and trailer are appended when the writer closes. A container
+ * that is added to later, such as by a fetch, gets a new index and
+ * trailer after its new images, and the last trailer is the one that
+ * counts. A container whose writer never closed, such as one left by a
+ * crash, has no trailer; it is read by walking its image entries, and a
+ * writer that reopens it drops any image cut short before carrying on.
+ * Numbers are big-endian, as on the wire, and names and addresses are
+ * UTF-8, zero padded.
+ * 
+ * Images are identified by host address and index, since the address is
+ * the registry's key and host names need not be unique. The name is kept
+ * only for display; one too long for its field is cut at a character
+ * boundary. An address too long for its field is refused.
+ *
+ * @author Kieran
+ */
+class SessionContainer implements Closeable {
+    
+    static final String EXTENSION = ".3dpm";
+    static final int ENTRY_SIZE = 128;
+    private static final byte[] MAGIC 
+            = "3DPMSESS".getBytes(StandardCharsets.US_ASCII);
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int NAME_SIZE = 28;
+    private static final int ADDRESS_SIZE = 40;
+    private static final int HASH_SIZE = 32;
+    private static final int IMAGE = 0x494D4745;
+    private static final int INDEX = 0x494E4458;
+    private static final int TRAILER = 0x54524C52;
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparing(Entry::getAddress).thenComparingInt(Entry::getIndex);
+    
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final List<Entry> entries;
+
+    private SessionContainer(FileChannel channel, List<Entry> entries) 
+                                                        throws IOException {
+        this.channel = channel;
+        this.entries = entries;
+        map = channel.size() <= Integer.MAX_VALUE 
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                : null;
+    }
+
+    /**
+     * This function opens a container for reading.
+     * 
+     * @param path the container file.
+     * @return the container.
+     * @throws IOException if the file is not a session container.
+     */
+    public static SessionContainer open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ArrayList<Entry> entries = new ArrayList<>(
+                                    load(channel, new long[1]).values());
+            entries.sort(ORDER);
+            return new SessionContainer(channel, 
+                                    Collections.unmodifiableList(entries));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param sessionPath the directory of a session.
+     * @return where the container of the session is written.
+     */
+    public static Path getPath(Path sessionPath) {
+        return sessionPath.resolveSibling(
+                                sessionPath.getFileName() + EXTENSION);
+    }
+
+    /**
+     * @return every image in the container, in address and index order.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * This function looks an image up in the index.
+     * 
+     * @param address the address of the image server.
+     * @param index the position of the image within the host's payload.
+     * @return the entry, or null if the container does not hold it.
+     */
+    public Entry find(String address, int index) {
+        int found = Collections.binarySearch(entries, 
+                new Entry("", address, index, 0, 0, null), ORDER);
+        return found >= 0 ? entries.get(found) : null;
+    }
+
+    /**
+     * This function returns the bytes of an image straight from the
+     * memory map. Nothing is copied; the pages are read from disk as the
+     * buffer is read.
+     * 
+     * @param entry the entry of the image.
+     * @return a read-only buffer holding exactly the image.
+     * @throws IOException 
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        if (map == null) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 
+                                        entry.offset, entry.length);
+        }
+        ByteBuffer image = map.duplicate();
+        image.position((int) entry.offset);
+        image.limit((int) (entry.offset + entry.length));
+        return image.slice();
+    }
+
+    /**
+     * This function returns an image in the form the preview decodes.
+     * 
+     * @param address the address of the image server.
+     * @param index the position of the image within the host's payload.
+     * @return the image, or null if the container does not hold it.
+     * @throws IOException 
+     */
+    public EncodedImage getImage(String address, int index) 
+                                                        throws IOException {
+        Entry entry = find(address, index);
+        return entry == null ? null : EncodedImage.wrap(read(entry));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * This function reads the entries of a container: from the index the
+     * last trailer points to if there is one, and otherwise by walking the
+     * image entries from the header. A later entry for the same host and
+     * index replaces an earlier one.
+     * 
+     * @param end set to the offset just past the last whole block.
+     * @return the entries, by address and index.
+     */
+    private static LinkedHashMap<String, Entry> load(FileChannel channel, 
+                                            long[] end) throws IOException {
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            throw new IOException("Not a session container.");
+        }
+        ByteBuffer header = read(channel, 0, HEADER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getShort() != VERSION 
+                        || header.getShort() != ENTRY_SIZE) {
+            throw new IOException("Not a session container.");
+        }
+        if (size >= HEADER_SIZE + ENTRY_SIZE) {
+            ByteBuffer trailer = read(channel, size - ENTRY_SIZE, ENTRY_SIZE);
+            if (trailer.getInt() == TRAILER) {
+                long offset = trailer.getLong();
+                int count = trailer.getInt();
+                if (count < 0 || offset < HEADER_SIZE || offset 
+                        + (long) count * ENTRY_SIZE > size - ENTRY_SIZE) {
+                    throw new IOException("Session container index is damaged.");
+                }
+                ByteBuffer index = read(channel, offset, count * ENTRY_SIZE);
+                for (int i = 0; i < count; i++) {
+                    index.position(i * ENTRY_SIZE);
+                    Entry entry = Entry.read(index);
+                    entries.put(entry.key(), entry);
+                }
+                end[0] = size;
+                return entries;
+            }
+        }
+        long position = HEADER_SIZE;
+        while (position + ENTRY_SIZE <= size) {
+            ByteBuffer block = read(channel, position, ENTRY_SIZE);
+            int marker = block.getInt(0);
+            if (marker == INDEX || marker == TRAILER) {
+                position += ENTRY_SIZE;
+                continue;
+            }
+            Entry entry = marker == IMAGE ? Entry.read(block) : null;
+            if (entry == null || entry.offset != position + ENTRY_SIZE 
+                    || entry.length < 0 
+                    || entry.offset + entry.length > size) {
+                break;
+            }
+            entries.put(entry.key(), entry);
+            position = entry.offset + entry.length;
+        }
+        end[0] = position;
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, 
+                                            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Session container is truncated.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * An entry locates one image within the container.
+     */
+    static class Entry {
+        
+        private final String name;
+        private final String address;
+        private final int index;
+        private final long offset;
+        private final long length;
+        private final byte[] hash;
+
+        Entry(String name, String address, int index, long offset, 
+                                                long length, byte[] hash) {
+            this.name = name;
+            this.address = address;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        private static Entry read(ByteBuffer block) {
+            int start = block.position();
+            block.getInt();
+            String name = getString(block, NAME_SIZE);
+            String address = getString(block, ADDRESS_SIZE);
+            int index = block.getInt();
+            long offset = block.getLong();
+            long length = block.getLong();
+            byte[] hash = new byte[HASH_SIZE];
+            block.get(hash);
+            block.position(start + ENTRY_SIZE);
+            return new Entry(name, address, index, offset, length, hash);
+        }
+
+        private void write(ByteBuffer block, int marker) {
+            int start = block.position();
+            block.putInt(marker);
+            putString(block, name, NAME_SIZE);
+            putString(block, address, ADDRESS_SIZE);
+            block.putInt(index).putLong(offset).putLong(length).put(hash);
+            block.position(start + ENTRY_SIZE);
+        }
+
+        private static String getString(ByteBuffer block, int size) {
+            byte[] bytes = new byte[size];
+            block.get(bytes);
+            int length = 0;
+            while (length < size && bytes[length] != 0) {
+                length++;
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * This function writes a string into a field, cutting it short at
+         * a character boundary if it does not fit.
+         */
+        private static void putString(ByteBuffer block, String value, 
+                                                                int size) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, size);
+            while (length < bytes.length && length > 0 
+                                    && (bytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+            block.put(bytes, 0, length);
+            block.put(new byte[size - length]);
+        }
+
+        private String key() {
+            return address + "#" + index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the SHA-256 of the image, in hex.
+         */
+        public String getHash() {
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+
+    /**
+     * A writer appends images to a container as they arrive, from any
+     * number of threads; each image is written whole, entry first, so the
+     * images never interleave. An image the container already holds with
+     * the same bytes is not written again.
+     */
+    static class Writer implements Closeable {
+        
+        private final FileChannel channel;
+        private final LinkedHashMap<String, Entry> entries;
+        private long position;
+        private boolean closed;
+
+        /**
+         * This constructor creates the container, or opens it to be added
+         * to if it already exists.
+         * 
+         * @param path the container file.
+         * @throws IOException if the file is not a session container.
+         */
+        Writer(Path path) throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.put(MAGIC).putShort(VERSION)
+                            .putShort((short) ENTRY_SIZE).putInt(0).flip();
+                    write(header, 0);
+                    entries = new LinkedHashMap<>();
+                    position = HEADER_SIZE;
+                } else {
+                    long[] end = new long[1];
+                    entries = load(channel, end);
+                    position = end[0];
+                    channel.truncate(position);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * This function appends an image to the container.
+         * 
+         * @param host the image server the image came from.
+         * @param index the position of the image within the host's payload.
+         * @param data the whole image.
+         * @throws IOException 
+         */
+        public void append(Host host, int index, byte[] data) 
+                                                        throws IOException {
+            if (host.getAddress().getBytes(StandardCharsets.UTF_8).length 
+                                                        > ADDRESS_SIZE) {
+                throw new IOException(String.format(
+                        "Address %s is too long for a session container.", 
+                        host.getAddress()));
+            }
+            byte[] hash;
+            try {
+                hash = MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Session container is closed.");
+                }
+                Entry held = entries.get(host.getAddress() + "#" + index);
+                if (held != null && Arrays.equals(held.hash, hash)) {
+                    return;
+                }
+                Entry entry = new Entry(host.getName(), host.getAddress(), 
+                        index, position + ENTRY_SIZE, data.length, hash);
+                ByteBuffer block = ByteBuffer.allocate(ENTRY_SIZE);
+                entry.write(block, IMAGE);
+                block.flip();
+                write(block, position);
+                write(ByteBuffer.wrap(data), entry.offset);
+                position = entry.offset + entry.length;
+                entries.put(entry.key(), entry);
+            }
+        }
+
+        /**
+         * This function appends the index and trailer, and closes the
+         * file. It does nothing if the writer is already closed.
+         * 
+         * @throws IOException 
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                ArrayList<Entry> sorted = new ArrayList<>(entries.values());
+                sorted.sort(ORDER);
+                ByteBuffer index = ByteBuffer.allocate(
+                                    (sorted.size() + 1) * ENTRY_SIZE);
+                sorted.forEach((entry) -> entry.write(index, INDEX));
+                index.putInt(TRAILER).putLong(position)
+                                                .putInt(sorted.size());
+                index.clear();
+                write(index, position);
+                position += index.capacity();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void write(ByteBuffer buffer, long at) throws IOException {
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+    }
+    
+}
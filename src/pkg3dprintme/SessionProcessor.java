@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * A session processor checks and summarises the images of a session while
+ * the capture is still running, so that the session is ready moments
+ * after its last image lands rather than after a sequential pass over
+ * every file. It wraps the archive the images are stored in, and each
+ * image, once stored in full, passes through two stages on the shared
+ * processing pool:
+ * 
+ * <pre>
+ *   inspect     the JPEG structure is checked from start to end of image,
+ *               the size and EXIF capture time are read, and the image
+ *               is appended to the session container, if there is one
+ *   thumbnail   a subsampled decode is scaled to fit the thumbnail size and
+ *               written to &lt;session&gt;/thumbnails/&lt;host&gt;/&lt;index&gt;.jpg,
+ *               where &lt;host&gt; is the host's directory in the archive
+ * </pre>
+ * 
+ * When the capture ends, finish waits for the stages to drain and writes
+ * the session manifest, session.tsv, with one line per image in host
+ * name, address and index order: host, address, index, length, width, height, capture time,
+ * thumbnail and status, where the status is "ok" or what is wrong with
+ * the image. Images already in the session that did not pass through the
+ * processor, such as those stored before an interrupted capture was
+ * fetched, are processed by finish as well. Closing the processor waits
+ * for the stages and closes the session container, whether or not the
+ * capture finished.
+ * 
+ * The session container holds a second copy of every image, beside the
+ * deduplicated archive, so it is only written when asked for, for a
+ * session that is to be copied or backed up as a single file.
+ * 
+ * Only a bounded number of images are in the stages at once. A transfer
+ * thread that hands over an image while the stages are full waits for
+ * room, so a pool that cannot keep up slows the transfers down rather
+ * than letting the backlog grow in memory.
+ *
+ * @author Kieran
+ */
+class SessionProcessor implements ImageSink, AutoCloseable {
+    
+    private static final String MANIFEST = "session.tsv";
+    private static final String THUMBNAILS = "thumbnails";
+    private static final int THUMBNAIL_SIZE = 320;
+    
+    private final ImageArchive archive;
+    private final SessionContainer.Writer container;
+    private final ForkJoinPool pool;
+    private final CaptureMetrics metrics;
+    private final Semaphore capacity;
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> entries;
+
+    /**
+     * @param archive the archive the images are stored in.
+     * @param pool the pool the stages run on.
+     * @param metrics the metrics the processing times are recorded in.
+     * @param container true to write the session container as well.
+     * @throws IOException if the session container cannot be opened.
+     */
+    public SessionProcessor(ImageArchive archive, ForkJoinPool pool, 
+            CaptureMetrics metrics, boolean container) throws IOException {
+        this.archive = archive;
+        this.container = container ? new SessionContainer.Writer(
+                SessionContainer.getPath(archive.getSessionPath())) : null;
+        this.pool = pool;
+        this.metrics = metrics;
+        capacity = new Semaphore(2 * pool.getParallelism());
+        entries = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void receive(Host host, int index, ReadableByteChannel source, 
+                                        long length) throws IOException {
+        archive.receive(host, index, source, length);
+    }
+
+    @Override
+    public long getOffset(Host host, int index) throws IOException {
+        return archive.getOffset(host, index);
+    }
+
+    @Override
+    public void resume(Host host, int index, ReadableByteChannel source, 
+                            long offset, long length) throws IOException {
+        archive.resume(host, index, source, offset, length);
+    }
+
+    @Override
+    public int checksum(Host host, int index) throws IOException {
+        return archive.checksum(host, index);
+    }
+
+    /**
+     * This function archives an image that has passed its end to end
+     * check and hands it to the stages, so that an image that failed it
+     * is never processed or added to the container.
+     */
+    @Override
+    public void commit(Host host, int index) throws IOException {
+        archive.commit(host, index);
+        submit(host, index);
+    }
+
+    /**
+     * This function hands a stored image to the stages, waiting for room
+     * if they are full. An image handed over again, such as one fetched
+     * again after an interrupted capture, replaces the earlier result.
+     */
+    private void submit(Host host, int index) throws IOException {
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting to process an image.");
+        }
+        entries.put(key(host.getAddress(), index), process(host, index)
+                .whenComplete((entry, e) -> capacity.release()));
+    }
+
+    private CompletableFuture<Entry> process(Host host, int index) {
+        long start = System.nanoTime();
+        Path imagePath = archive.getImagePath(host, index);
+        return CompletableFuture
+                .supplyAsync(() -> inspect(host, index, imagePath), pool)
+                .thenApplyAsync((entry) -> {
+                    thumbnail(entry, imagePath);
+                    metrics.record(CaptureMetrics.Metric.PROCESS_IMAGE, host,
+                                                System.nanoTime() - start);
+                    return entry;
+                }, pool)
+                .exceptionally((e) -> {
+                    // A stage that fails outright marks the image as
+                    // damaged rather than losing the rest of the session.
+                    Throwable cause = e instanceof CompletionException 
+                            && e.getCause() != null ? e.getCause() : e;
+                    System.out.println(String.format(
+                            "Processing image %d from %s failed: %s", 
+                            index, host.getAddress(), cause));
+                    Entry entry = new Entry(host, index);
+                    entry.status = "unprocessed: " + cause;
+                    return entry;
+                });
+    }
+
+    /**
+     * The inspect stage reads the image, checks its structure and adds it
+     * to the container, if there is one.
+     */
+    private Entry inspect(Host host, int index, Path imagePath) {
+        Entry entry = new Entry(host, index);
+        try {
+            entry.data = Files.readAllBytes(imagePath);
+            entry.length = entry.data.length;
+            entry.info = JpegInfo.parse(entry.data);
+            entry.status = entry.info.isValid() 
+                    ? "ok" : entry.info.getProblem();
+        } catch (IOException e) {
+            entry.status = "unreadable: " + e.getMessage();
+            return entry;
+        }
+        if (container == null) {
+            return entry;
+        }
+        try {
+            container.append(host, index, entry.data);
+        } catch (IOException e) {
+            entry.status = "not in container: " + e.getMessage();
+        }
+        return entry;
+    }
+
+    /**
+     * The thumbnail stage decodes only every n-th pixel of every n-th
+     * row, for the largest n that still leaves the image at least the
+     * thumbnail size, and scales the rest of the way down.
+     */
+    private void thumbnail(Entry entry, Path imagePath) {
+        byte[] data = entry.data;
+        entry.data = null;
+        if (entry.info == null || !entry.info.isValid()) {
+            return;
+        }
+        Path thumbnailPath = archive.getSessionPath().resolve(THUMBNAILS)
+                .resolve(ImageArchive.getDirectory(entry.host))
+                .resolve(entry.index + ".jpg");
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg")
+                                                                    .next();
+        try (MemoryCacheImageInputStream input = 
+                new MemoryCacheImageInputStream(
+                                        new ByteArrayInputStream(data))) {
+            reader.setInput(input, true, true);
+            int largest = Math.max(entry.info.getWidth(), 
+                                            entry.info.getHeight());
+            int step = Math.max(1, largest / THUMBNAIL_SIZE);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage decoded = reader.read(0, param);
+            double scale = Math.min(1.0, (double) THUMBNAIL_SIZE 
+                    / Math.max(decoded.getWidth(), decoded.getHeight()));
+            BufferedImage thumbnail = new BufferedImage(
+                    Math.max(1, (int) Math.round(decoded.getWidth() * scale)),
+                    Math.max(1, (int) Math.round(decoded.getHeight() * scale)),
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+                                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(decoded, 0, 0, thumbnail.getWidth(), 
+                                            thumbnail.getHeight(), null);
+            graphics.dispose();
+            Files.createDirectories(thumbnailPath.getParent());
+            Path partPath = thumbnailPath.resolveSibling(entry.index + ".part");
+            if (!ImageIO.write(thumbnail, "jpg", partPath.toFile())) {
+                throw new IOException("no JPEG writer");
+            }
+            Files.move(partPath, thumbnailPath, 
+                                    StandardCopyOption.REPLACE_EXISTING);
+            entry.thumbnail = archive.getSessionPath()
+                                                .relativize(thumbnailPath);
+        } catch (IOException | RuntimeException e) {
+            entry.status = "undecodable: " + e.getMessage();
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * This function waits for every image handed over to pass through the
+     * stages, processes any image in the session that was not handed
+     * over, writes the session manifest and closes the container.
+     * 
+     * @return the number of images that are damaged or could not be read.
+     * @throws java.lang.Exception
+     */
+    public int finish() throws Exception {
+        long start = System.nanoTime();
+        catchUp();
+        ArrayList<Entry> processed = new ArrayList<>();
+        for (CompletableFuture<Entry> entry : entries.values()) {
+            processed.add(entry.join());
+        }
+        processed.sort(Comparator.comparing((Entry entry) -> 
+                entry.host.getName())
+                .thenComparing((entry) -> entry.host.getAddress())
+                .thenComparingInt((entry) -> entry.index));
+        StringBuilder manifest = new StringBuilder();
+        int damaged = 0;
+        for (Entry entry : processed) {
+            manifest.append(entry.toString());
+            if (!"ok".equals(entry.status)) {
+                damaged++;
+            }
+        }
+        Path manifestPath = archive.getSessionPath().resolve(MANIFEST);
+        Path partPath = manifestPath.resolveSibling(MANIFEST + ".part");
+        Files.createDirectories(manifestPath.getParent());
+        Files.write(partPath, 
+                    manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(partPath, manifestPath, 
+                                    StandardCopyOption.REPLACE_EXISTING);
+        if (container != null) {
+            container.close();
+        }
+        metrics.record(CaptureMetrics.Metric.PROCESS_TAIL, null, 
+                                                System.nanoTime() - start);
+        return damaged;
+    }
+
+    /**
+     * This function waits for the images already handed over to pass
+     * through the stages, then closes the container, so that what
+     * arrived is indexed even if the capture failed. It does nothing
+     * after finish.
+     * 
+     * @throws IOException 
+     */
+    @Override
+    public void close() throws IOException {
+        for (CompletableFuture<Entry> entry : entries.values()) {
+            try {
+                entry.join();
+            } catch (RuntimeException e) {
+                // Reported by finish, if the session gets that far.
+            }
+        }
+        if (container != null) {
+            container.close();
+        }
+    }
+
+    /**
+     * This function hands over the images in the session that have not
+     * been handed over already. The images are those the archive manifest
+     * lists whose links are in place.
+     */
+    private void catchUp() throws IOException {
+        Path sessionPath = archive.getSessionPath();
+        if (!Files.isDirectory(sessionPath)) {
+            return;
+        }
+        Path archiveManifest = sessionPath.resolve(ImageArchive.MANIFEST);
+        if (!Files.exists(archiveManifest)) {
+            return;
+        }
+        for (String line : Files.readAllLines(archiveManifest, 
+                                                StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length < 3 || !fields[2].matches("\\d+")) {
+                continue;
+            }
+            Host host = new Host(fields[0], fields[1], "");
+            int index = Integer.parseInt(fields[2]);
+            if (!entries.containsKey(key(host.getAddress(), index)) 
+                    && Files.exists(archive.getImagePath(host, index))) {
+                submit(host, index);
+            }
+        }
+    }
+
+    private static String key(String address, int index) {
+        return address + "#" + index;
+    }
+
+    /**
+     * An entry is what the stages learn about one image; it becomes one
+     * line of the session manifest.
+     */
+    private static class Entry {
+        
+        private final Host host;
+        private final int index;
+        private byte[] data;
+        private long length;
+        private JpegInfo info;
+        private Path thumbnail;
+        private String status;
+
+        Entry(Host host, int index) {
+            this.host = host;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%s\t%d\t%d\t%d\t%d\t%s\t%s\t%s\n", 
+                    host.getName(), host.getAddress(), index, length,
+                    info == null ? 0 : info.getWidth(),
+                    info == null ? 0 : info.getHeight(),
+                    info == null || info.getTimestamp() == null 
+                            ? "" : info.getTimestamp(),
+                    thumbnail == null 
+                            ? "" : thumbnail.toString().replace('\\', '/'),
+                    status.replace('\t', ' ').replace('\n', ' '));
+        }
+    }
+    
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+/**
+ * A sync entry describes how one ImageServer's clock relates to the
+ * client's clock. It is estimated NTP-style from a series of round trips:
+ * each round trip records the client send time, the host receive and send
+ * times, and the client receive time. Only the round trips close to the
+ * fastest one are trusted, and a line fitted through their offsets gives
+ * the offset at the reference time and the drift away from it.
+ *
+ * All times are in nanoseconds.
+ *
+ * @author Kieran
+ */
+public class SyncEntry {
+    
+    private static final double RTT_FILTER = 1.5;
+    private static final double MAX_DRIFT = 200e-6;
+    
+    private final long reference;
+    private final long offset;
+    private final double drift;
+    private final long delay;
+    private final long confidence;
+
+    public SyncEntry(long reference, long offset, double drift, long delay, 
+                                                        long confidence) {
+        this.reference = reference;
+        this.offset = offset;
+        this.drift = drift;
+        this.delay = delay;
+        this.confidence = confidence;
+    }
+
+    /**
+     * This function estimates a sync entry from a series of round trips.
+     * 
+     * @param sent the client times at which each ping was sent.
+     * @param hostReceived the host times at which each ping arrived.
+     * @param hostSent the host times at which each pong was sent.
+     * @param received the client times at which each pong arrived.
+     * @return the estimated offset, drift and confidence of the host clock.
+     */
+    public static SyncEntry estimate(long[] sent, long[] hostReceived, 
+                                        long[] hostSent, long[] received) {
+        int samples = sent.length;
+        long[] rtt = new long[samples];
+        int best = 0;
+        for (int i = 0; i < samples; i++) {
+            rtt[i] = (received[i] - sent[i]) - (hostSent[i] - hostReceived[i]);
+            if (rtt[i] < rtt[best]) {
+                best = i;
+            }
+        }
+        long reference = sent[best] + (received[best] - sent[best]) / 2;
+        long limit = (long) (Math.max(rtt[best], 1) * RTT_FILTER);
+        
+        // Least-squares fit of offset against local time, relative to the
+        // fastest round trip to keep the sums well inside a double.
+        int n = 0;
+        double sumT = 0, sumO = 0, sumTT = 0, sumTO = 0;
+        double[] t = new double[samples];
+        double[] o = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            if (rtt[i] > limit) {
+                continue;
+            }
+            t[n] = (sent[i] + (received[i] - sent[i]) / 2) - reference;
+            o[n] = ((hostReceived[i] - sent[i]) 
+                        + (hostSent[i] - received[i])) / 2.0;
+            sumT += t[n];
+            sumO += o[n];
+            sumTT += t[n] * t[n];
+            sumTO += t[n] * o[n];
+            n++;
+        }
+        double variance = n * sumTT - sumT * sumT;
+        double drift = (n > 1 && variance > 0) 
+                ? (n * sumTO - sumT * sumO) / variance : 0;
+        // Real oscillators stay well within MAX_DRIFT; a steeper slope over
+        // a short probe window is jitter, and extrapolating it would only
+        // add error.
+        if (Math.abs(drift) > MAX_DRIFT) {
+            drift = 0;
+        }
+        double intercept = (sumO - drift * sumT) / n;
+        double residuals = 0;
+        for (int i = 0; i < n; i++) {
+            double error = o[i] - (intercept + drift * t[i]);
+            residuals += error * error;
+        }
+        long spread = (long) Math.sqrt(residuals / n);
+        return new SyncEntry(reference, Math.round(intercept), drift, 
+                                        rtt[best], rtt[best] / 2 + spread);
+    }
+
+    /**
+     * This function converts a client time to the host's clock.
+     * 
+     * @param localTime a client time.
+     * @return the same instant on the host's clock.
+     */
+    public long toHostTime(long localTime) {
+        return localTime + offset 
+                + Math.round(drift * (localTime - reference));
+    }
+
+    /**
+     * This function converts a host time back to the client's clock.
+     * 
+     * @param hostTime a time on the host's clock.
+     * @return the same instant on the client's clock.
+     */
+    public long toLocalTime(long hostTime) {
+        return Math.round((hostTime - offset + drift * reference) / (1 + drift));
+    }
+
+    /**
+     * @return the client time the estimate is anchored to.
+     */
+    public long getReference() {
+        return reference;
+    }
+
+    /**
+     * @return the host clock minus the client clock at the reference time.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the rate at which the offset changes, in nanoseconds per
+     * nanosecond.
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * @return the fastest network round trip observed.
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return the half-width of the interval the true offset lies within.
+     */
+    public long getConfidence() {
+        return confidence;
+    }
+    
+}
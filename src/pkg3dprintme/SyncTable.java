@@ -16,25 +16,27 @@
  */
 package pkg3dprintme;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * A sync table holds the clock estimate for each host. Hosts are probed
+ * in parallel, so the table is safe to fill from several threads.
  *
  * @author Kieran
  */
 public class SyncTable {
     
-    private final HashMap<Host, Long> syncTable;
+    private final ConcurrentHashMap<Host, SyncEntry> syncTable;
     
     public SyncTable() {
-        syncTable = new HashMap<>();
+        syncTable = new ConcurrentHashMap<>();
     }
 
-    public void add(Host host, long delay) {
-        syncTable.put(host, delay);
+    public void add(Host host, SyncEntry entry) {
+        syncTable.put(host, entry);
     }
     
-    public Long get(Host host) {
+    public SyncEntry get(Host host) {
         return syncTable.get(host);
     }
     
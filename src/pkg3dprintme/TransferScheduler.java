@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The transfer scheduler decides how many image transfers run at once.
+ * Every ImageServer shares the booth switch's uplink and the client's
+ * network interface, so starting every transfer at once only makes them
+ * fight: TCP backs off, throughput collapses and a few hosts are left
+ * straggling at the end. Instead the number of transfers in flight is
+ * adapted to the throughput actually measured, additively increasing
+ * while the aggregate rate holds up and halving when it falls away, in
+ * the same way TCP adapts its own window.
+ * 
+ * Transfers are started in the order they were submitted, but never more
+ * than one per host at a time, since a host only has the one control
+ * connection; a host with several transfers queued waits its turn rather
+ * than holding slots that other hosts could use. While a priority
+ * transfer, such as a preview, is running, no new bulk transfer is
+ * started, so the preview has the link to itself as soon as the
+ * transfers already in flight finish their current host. The exception
+ * is a transfer queued for the preview's own host, which is started at
+ * once whatever the limit: the preview cannot have the host's connection
+ * until that transfer has collected any reply the host owes it.
+ *
+ * @author Kieran
+ */
+class TransferScheduler {
+
+    private static final int INITIAL_LIMIT = 8;
+    private static final int MIN_LIMIT = 2;
+    private static final int WINDOW = 100;
+    private static final double DECREASE = 0.5;
+    private static final double COLLAPSE = 0.8;
+    private static final double TOLERANCE = 0.95;
+    private static final double SMOOTHING = 0.5;
+
+    private final int maxLimit;
+    private final ArrayDeque<Transfer<?>> queue;
+    private final HashMap<Host, Transfer<?>> busy;
+    private final LongAdder bytes;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService control;
+    private double limit;
+    private double rate;
+    private int active;
+    private final HashMap<Host, Integer> priority;
+
+    /**
+     * @param maxLimit the most transfers ever run at once.
+     */
+    public TransferScheduler(int maxLimit) {
+        this.maxLimit = maxLimit;
+        queue = new ArrayDeque<>();
+        busy = new HashMap<>();
+        priority = new HashMap<>();
+        bytes = new LongAdder();
+        limit = Math.min(INITIAL_LIMIT, maxLimit);
+        workers = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        control = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "transfer-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        control.scheduleAtFixedRate(this::adapt, WINDOW, WINDOW, 
+                                                    TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This function queues a bulk transfer from a host.
+     * 
+     * @param <T> the result of the transfer.
+     * @param host the host the transfer reads from.
+     * @param transfer the transfer.
+     * @return a future for the result; cancelling it interrupts the 
+     *         transfer, or stops it from starting.
+     */
+    public synchronized <T> Future<T> submit(Host host, Callable<T> transfer) {
+        Transfer<T> task = new Transfer<>(host, transfer);
+        queue.add(task);
+        dispatch();
+        return task;
+    }
+
+    /**
+     * This function runs a priority transfer on the calling thread. No
+     * bulk transfer from any other host is started until it has finished.
+     * 
+     * @param <T> the result of the transfer.
+     * @param host the host the transfer reads from.
+     * @param transfer the transfer.
+     * @return the result of the transfer.
+     * @throws Exception 
+     */
+    public <T> T priority(Host host, Callable<T> transfer) throws Exception {
+        synchronized (this) {
+            priority.merge(host, 1, Integer::sum);
+            dispatch();
+        }
+        try {
+            return transfer.call();
+        } finally {
+            synchronized (this) {
+                priority.computeIfPresent(host, 
+                        (key, count) -> count > 1 ? count - 1 : null);
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * This function wraps an image source so that the bytes read from it
+     * count towards the measured throughput.
+     * 
+     * @param source the image source.
+     * @return the metered source.
+     */
+    public ReadableByteChannel meter(ReadableByteChannel source) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int read = source.read(dst);
+                if (read > 0) {
+                    bytes.add(read);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return source.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    /**
+     * @return the number of transfers currently allowed to run at once.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * This function stops the scheduler, interrupting every transfer.
+     */
+    public void shutdown() {
+        control.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * The dispatch function starts queued transfers, oldest first and
+     * skipping hosts that are already busy, until the limit is reached.
+     * While priority transfers are running, only transfers for their hosts
+     * are started.
+     */
+    private synchronized void dispatch() {
+        Iterator<Transfer<?>> waiting = queue.iterator();
+        while (waiting.hasNext()) {
+            Transfer<?> next = waiting.next();
+            boolean allowed = priority.isEmpty() 
+                    ? active < (int) limit : priority.containsKey(next.host);
+            if (next.isDone()) {
+                waiting.remove();
+            } else if (allowed && !busy.containsKey(next.host)) {
+                waiting.remove();
+                busy.put(next.host, next);
+                active++;
+                workers.execute(next);
+            }
+        }
+    }
+
+    private synchronized void finished(Transfer<?> transfer) {
+        if (busy.remove(transfer.host, transfer)) {
+            active--;
+        }
+        dispatch();
+    }
+
+    /**
+     * The adapt function runs once a window. The limit is only adapted
+     * while there are transfers waiting for a slot, since only then does
+     * the measured rate say anything about the limit. While the rate holds
+     * up the limit grows by one; if it falls well below its recent level
+     * the link is taken to be congested and the limit is halved.
+     */
+    private synchronized void adapt() {
+        double measured = bytes.sumThenReset() * 1000.0 / WINDOW;
+        boolean waiting = queue.stream().anyMatch(
+                (transfer) -> !transfer.isDone() 
+                                && !busy.containsKey(transfer.host));
+        if (!waiting || active < (int) limit) {
+            rate = 0;
+            return;
+        }
+        if (rate > 0 && measured < rate * COLLAPSE) {
+            limit = Math.max(MIN_LIMIT, limit * DECREASE);
+        } else if (rate == 0 || measured >= rate * TOLERANCE) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        rate = rate == 0 
+                ? measured : SMOOTHING * rate + (1 - SMOOTHING) * measured;
+        dispatch();
+    }
+
+    /**
+     * A transfer is a queued task for a single host. The scheduler is told
+     * when its worker leaves it, however it ends, so that the host's slot
+     * is freed. A transfer that is cancelled while running is done at
+     * once, but its worker may still be reading from the host until the
+     * interrupt reaches it, so the slot is only freed when the run ends.
+     */
+    private class Transfer<T> extends FutureTask<T> {
+
+        private final Host host;
+
+        Transfer(Host host, Callable<T> callable) {
+            super(callable);
+            this.host = host;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+/**
+ * A transfer state follows the delivery of one capture from one
+ * ImageServer, so that a transfer that fails part way through can be
+ * resumed with a ranged FETCH rather than started again. It holds the
+ * shutter time that identifies the capture on the host, the length and
+ * checksum of each image as the host described them, and the first image
+ * not yet delivered in full. How much of that image has arrived is kept by
+ * the image sink, which knows what it has stored. It also times the
+ * transfer, for the capture metrics.
+ *
+ * @author Kieran
+ */
+class TransferState {
+    
+    private long shutter;
+    private long[] lengths;
+    private int[] checksums;
+    private boolean started;
+    private boolean restart;
+    private int index;
+    private long sent;
+    private long firstByte;
+    private long finished;
+    private long bytes;
+    private long trigger;
+
+    /**
+     * This function creates the state of a transfer that has already
+     * started, such as one read back from the capture journal.
+     * 
+     * @param trigger the id of the trigger that fired the capture.
+     * @param shutter the host shutter time of the capture, or 0 if the
+     *                host's reply was never read and the capture is known
+     *                only by its trigger.
+     * @param index the first image not yet delivered in full.
+     * @return the transfer state.
+     */
+    public static TransferState resume(long trigger, long shutter, 
+                                                                int index) {
+        TransferState state = new TransferState();
+        state.trigger = trigger;
+        state.shutter = shutter;
+        state.index = index;
+        state.started = true;
+        return state;
+    }
+
+    /**
+     * This function records the host's description of the capture, from
+     * its SHUTTER frame.
+     * 
+     * @param shutter the host shutter time.
+     * @param lengths the length of each image.
+     * @param checksums the CRC32 of each image.
+     */
+    public void start(long shutter, long[] lengths, int[] checksums) {
+        this.shutter = shutter;
+        this.lengths = lengths;
+        this.checksums = checksums;
+        started = true;
+    }
+
+    /**
+     * This function records that an image has been delivered and checked.
+     * 
+     * @param index the image delivered.
+     */
+    public void completed(int index) {
+        this.index = index + 1;
+        restart = false;
+    }
+
+    /**
+     * This function records that the image in progress failed its end to
+     * end check, so what has been stored of it cannot be trusted and it
+     * must be sent again from the start.
+     */
+    public void restartImage() {
+        restart = true;
+    }
+
+    /**
+     * @param trigger the id of the trigger that fired the capture.
+     */
+    public void setTrigger(long trigger) {
+        this.trigger = trigger;
+    }
+
+    public long getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * This function records when the command was first sent.
+     */
+    public void markSent() {
+        if (sent == 0) {
+            sent = System.nanoTime();
+        }
+    }
+
+    /**
+     * This function records when the reply first began to arrive.
+     */
+    public void markFirstByte() {
+        if (firstByte == 0) {
+            firstByte = System.nanoTime();
+        }
+    }
+
+    /**
+     * This function records image bytes received, and when.
+     * 
+     * @param count the number of bytes received.
+     */
+    public void addBytes(long count) {
+        bytes += count;
+        finished = System.nanoTime();
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return the image bytes received per second, from the first byte of
+     *         the reply to the last byte of the last image.
+     */
+    public long getRate() {
+        long elapsed = finished - firstByte;
+        return elapsed <= 0 ? 0 : (long) (bytes * 1e9 / elapsed);
+    }
+
+    /**
+     * @return true once the host has fired, after which the transfer can
+     *         only be resumed, never commanded again.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isRestart() {
+        return restart;
+    }
+
+    public long getShutter() {
+        return shutter;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getLength(int index) {
+        return lengths[index];
+    }
+
+    public int getChecksum(int index) {
+        return checksums[index];
+    }
+    
+}
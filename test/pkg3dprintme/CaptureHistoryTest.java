@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * These tests search a small capture history by each of its criteria,
+ * alone and together, and read it back as a restart would.
+ *
+ * @author Kieran
+ */
+public class CaptureHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private CaptureHistory history;
+
+    @Before
+    public void setUp() throws IOException {
+        path = folder.getRoot().toPath().resolve("history.tsv");
+        history = new CaptureHistory(path);
+        history.open();
+        record("Ada Lovelace", "087 123 4567", "2016-03-01", "/booth/a",
+                                                    "10.0.0.1", "10.0.0.2");
+        record("adam smith", "0861112222", "2016-03-02", "/booth/b",
+                                                    "10.0.0.2", "10.0.0.3");
+        record("Grace Hopper", "0871239999", "2016-03-03", "/archive/c",
+                                                    "10.0.0.1", "10.0.0.3");
+        record("Ada Lovelace", "0871234567", "2016-03-04", "/booth/d",
+                                                    "10.0.0.1");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        history.close();
+    }
+
+    @Test
+    public void testNameIsMatchedByPrefixInAnyCase() {
+        assertEquals(Arrays.asList("2016-03-04", "2016-03-02", "2016-03-01"),
+                dates(history.search(new CaptureHistory.Query().name("ADA"))));
+        assertEquals(Arrays.asList("2016-03-04", "2016-03-01"),
+                dates(history.search(new CaptureHistory.Query()
+                                                    .name("ada love"))));
+    }
+
+    @Test
+    public void testMobileIsMatchedOnDigits() {
+        assertEquals(Arrays.asList("2016-03-04", "2016-03-03", "2016-03-01"),
+                dates(history.search(new CaptureHistory.Query()
+                                                    .mobile("(087) 123"))));
+    }
+
+    @Test
+    public void testDatesAreInclusive() {
+        assertEquals(Arrays.asList("2016-03-03", "2016-03-02"),
+                dates(history.search(new CaptureHistory.Query().dates(
+                    LocalDate.of(2016, 3, 2), LocalDate.of(2016, 3, 3)))));
+        assertTrue(history.search(new CaptureHistory.Query().dates(
+                LocalDate.of(2016, 3, 3), LocalDate.of(2016, 3, 2)))
+                                                            .isEmpty());
+    }
+
+    @Test
+    public void testEveryHostMustHaveTakenPart() {
+        assertEquals(Arrays.asList("2016-03-04", "2016-03-03", "2016-03-01"),
+                dates(history.search(new CaptureHistory.Query().hosts(
+                                Arrays.asList("10.0.0.1")))));
+        assertEquals(Arrays.asList("2016-03-03"),
+                dates(history.search(new CaptureHistory.Query().hosts(
+                                Arrays.asList("10.0.0.1", "10.0.0.3")))));
+        assertTrue(history.search(new CaptureHistory.Query().hosts(
+                        Arrays.asList("10.0.0.9"))).isEmpty());
+    }
+
+    @Test
+    public void testCriteriaAreCombined() {
+        assertEquals(Arrays.asList("2016-03-01"),
+                dates(history.search(new CaptureHistory.Query()
+                        .name("ada").path("/booth/a")
+                        .hosts(Arrays.asList("10.0.0.2")))));
+        assertEquals(Arrays.asList("2016-03-04"),
+                dates(history.search(new CaptureHistory.Query()
+                        .name("ada").limit(1))));
+    }
+
+    @Test
+    public void testHistoryIsReadBack() throws IOException {
+        history.close();
+        Files.write(path, "9\t0\tCut".getBytes(StandardCharsets.UTF_8),
+                                                StandardOpenOption.APPEND);
+        history = new CaptureHistory(path);
+        assertEquals(4, history.open());
+        CaptureHistory.Session session = record("Alan Turing", "",
+                                        "2016-03-05", "/booth/e", "10.0.0.4");
+        assertEquals(5, session.getId());
+        assertEquals(Arrays.asList("2016-03-05"),
+                dates(history.search(new CaptureHistory.Query()
+                                                    .name("alan"))));
+    }
+
+    private CaptureHistory.Session record(String name, String mobile,
+                String date, String path, String... hosts) throws IOException {
+        return history.record(name, mobile, LocalDate.parse(date), path,
+                                                    Arrays.asList(hosts));
+    }
+
+    private static List<String> dates(List<CaptureHistory.Session> sessions) {
+        ArrayList<String> dates = new ArrayList<>();
+        sessions.forEach((session) -> dates.add(session.getDate().toString()));
+        return dates;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * These tests replay capture journals as a restart would, checking that
+ * an interrupted job comes back with everything needed to finish it and
+ * that compaction never lets a job id be handed out twice.
+ *
+ * @author Kieran
+ */
+public class CaptureJournalTest {
+
+    private static final LocalDate DATE = LocalDate.of(2016, 3, 14);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("captures.journal");
+    }
+
+    @Test
+    public void testEmptyJournal() throws IOException {
+        CaptureJournal journal = new CaptureJournal(path);
+        assertTrue(journal.open().isEmpty());
+        assertEquals(1, journal.nextId());
+        assertEquals(2, journal.nextId());
+        journal.close();
+    }
+
+    @Test
+    public void testUnfinishedJobIsResumed() throws IOException {
+        CaptureJournal journal = new CaptureJournal(path);
+        journal.open();
+        CaptureJob job = submit(journal, "Ada");
+        journal.triggered(job, 77, Arrays.asList("10.0.0.1", "10.0.0.2",
+                                                            "10.0.0.3"));
+        journal.shutterFired(job, "10.0.0.1", 1000);
+        journal.shutterFired(job, "10.0.0.2", 2000);
+        journal.imageReceived(job, "10.0.0.1", 0, 100);
+        journal.imageReceived(job, "10.0.0.1", 1, 200);
+        journal.hostCompleted(job, "10.0.0.1");
+        journal.imageReceived(job, "10.0.0.2", 0, 300);
+        journal.imageReceived(job, "10.0.0.2", 2, 300);
+        journal.close();
+
+        List<CaptureJob> resumed = new CaptureJournal(path).open();
+        assertEquals(1, resumed.size());
+        CaptureJob replayed = resumed.get(0);
+        assertEquals(job.getId(), replayed.getId());
+        assertEquals("Ada", replayed.getName());
+        assertEquals(DATE, replayed.getDate());
+        assertTrue(replayed.hasFired());
+        assertEquals(77, replayed.getTrigger());
+        Map<String, Long> pending = replayed.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(Long.valueOf(2000), pending.get("10.0.0.2"));
+        assertEquals("a host whose reply was never read is fetched by trigger",
+                Long.valueOf(0), pending.get("10.0.0.3"));
+        assertTrue(replayed.isCompleted("10.0.0.1"));
+        assertEquals("only the images before the first gap count",
+                Integer.valueOf(1), replayed.getDelivered().get("10.0.0.2"));
+    }
+
+    @Test
+    public void testFinishedJobsAreDropped() throws IOException {
+        CaptureJournal journal = new CaptureJournal(path);
+        journal.open();
+        CaptureJob done = submit(journal, "Done");
+        CaptureJob failed = submit(journal, "Failed");
+        CaptureJob open = submit(journal, "Open");
+        journal.completed(done);
+        journal.failed(failed, "no hosts\tanswered\nat all");
+        journal.close();
+
+        List<CaptureJob> resumed = new CaptureJournal(path).open();
+        assertEquals(1, resumed.size());
+        assertEquals(open.getId(), resumed.get(0).getId());
+        assertFalse(resumed.get(0).hasFired());
+    }
+
+    @Test
+    public void testCompactionKeepsNextId() throws IOException {
+        CaptureJournal journal = new CaptureJournal(path);
+        journal.open();
+        CaptureJob first = submit(journal, "First");
+        CaptureJob second = submit(journal, "Second");
+        journal.completed(first);
+        journal.completed(second);
+        journal.close();
+
+        journal = new CaptureJournal(path);
+        assertTrue(journal.open().isEmpty());
+        journal.close();
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("NEXT\t" + (second.getId() + 1)), lines);
+
+        journal = new CaptureJournal(path);
+        journal.open();
+        assertEquals(second.getId() + 1, journal.nextId());
+        journal.close();
+    }
+
+    @Test
+    public void testCutLineIsIgnored() throws IOException {
+        CaptureJournal journal = new CaptureJournal(path);
+        journal.open();
+        CaptureJob job = submit(journal, "Cut");
+        journal.shutterFired(job, "10.0.0.1", 1000);
+        journal.close();
+        Files.write(path, ("HOST\t" + job.getId() + "\t10.0.")
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<CaptureJob> resumed = new CaptureJournal(path).open();
+        assertEquals(1, resumed.size());
+        assertFalse(resumed.get(0).isCompleted("10.0.0.1"));
+        assertTrue(resumed.get(0).getPending().containsKey("10.0.0.1"));
+    }
+
+    private static CaptureJob submit(CaptureJournal journal, String name)
+                                                        throws IOException {
+        CaptureJob job = new CaptureJob(journal.nextId(), name, "0871234567",
+                                                        DATE, "/captures");
+        journal.submitted(job);
+        return job;
+    }
+
+}
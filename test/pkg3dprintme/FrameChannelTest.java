@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests write frames to a byte array and read them back, checking
+ * that an image survives being split into chunks and that a damaged
+ * chunk or a frame of another protocol version is refused.
+ *
+ * @author Kieran
+ */
+public class FrameChannelTest {
+
+    private final BufferPool pool = new BufferPool(FrameChannel.MAX_PAYLOAD, 2);
+
+    @Test
+    public void testImageIsReassembled() throws IOException {
+        byte[] image = image(FrameChannel.CHUNK_SIZE * 2 + 1000);
+        FrameChannel reader = reader(chunks(image));
+        FrameChannel.ImageChannel channel = reader.openImage(3);
+        assertEquals(image.length, channel.length());
+        ByteBuffer received = ByteBuffer.allocate(image.length);
+        while (channel.read(received) >= 0) {
+        }
+        assertArrayEquals(image, received.array());
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        assertEquals((int) crc.getValue(), channel.checksum());
+    }
+
+    @Test
+    public void testDamagedChunkIsRefused() throws IOException {
+        byte[] frames = chunks(image(FrameChannel.CHUNK_SIZE + 10));
+        // Flip a data byte of the second chunk.
+        frames[frames.length - 5] ^= 1;
+        FrameChannel.ImageChannel channel = reader(frames).openImage(3);
+        try {
+            channel.drain();
+            fail("a damaged chunk was accepted");
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().startsWith("Checksum mismatch"));
+        }
+    }
+
+    @Test
+    public void testOtherVersionIsRefused() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer(out).writePing(42);
+        byte[] frame = out.toByteArray();
+        assertEquals(FrameChannel.PING, reader(frame).read());
+        frame[0] = (byte) (FrameChannel.VERSION + 1);
+        try {
+            reader(frame).read();
+            fail("a frame of another version was accepted");
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().startsWith("Unsupported protocol version"));
+        }
+    }
+
+    @Test
+    public void testErrorIsThrown() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer(out).writeError("camera busy");
+        try {
+            reader(out.toByteArray()).read();
+            fail("an ERROR frame was returned");
+        } catch (ProtocolException e) {
+            assertEquals("camera busy", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTriggerDatagram() throws IOException {
+        ByteBuffer ack = FrameChannel.encodeTriggerAck(99);
+        assertEquals(99, FrameChannel.openDatagram(ack,
+                                    FrameChannel.TRIGGER_ACK).getLong());
+        ByteBuffer cut = FrameChannel.encodeTriggerAck(99);
+        cut.limit(cut.limit() - 1);
+        try {
+            FrameChannel.openDatagram(cut, FrameChannel.TRIGGER_ACK);
+            fail("a cut datagram was accepted");
+        } catch (ProtocolException e) {
+            assertEquals("Truncated datagram", e.getMessage());
+        }
+    }
+
+    private byte[] chunks(byte[] image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameChannel writer = writer(out);
+        for (int offset = 0; offset < image.length;
+                                    offset += FrameChannel.CHUNK_SIZE) {
+            int length = Math.min(FrameChannel.CHUNK_SIZE,
+                                                image.length - offset);
+            writer.writeChunk(3, image.length, offset,
+                                    ByteBuffer.wrap(image, offset, length));
+        }
+        return out.toByteArray();
+    }
+
+    private FrameChannel writer(ByteArrayOutputStream out) {
+        return new FrameChannel(null, Channels.newChannel(out), pool);
+    }
+
+    private FrameChannel reader(byte[] frames) {
+        return new FrameChannel(Channels.newChannel(
+                        new ByteArrayInputStream(frames)), null, pool);
+    }
+
+    private static byte[] image(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check the histogram's summary statistics and that every
+ * percentile lands within a bucket's width of the true value.
+ *
+ * @author Kieran
+ */
+public class HistogramTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 8; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        assertEquals(9, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(7, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.2));
+        assertEquals(4, histogram.getPercentile(0.6));
+        assertEquals(7, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void testPercentilesAreWithinBucket() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(50000.5, histogram.getMean(), 1e-9);
+        for (double fraction : new double[] {0.01, 0.5, 0.9, 0.99, 0.999}) {
+            long expected = (long) Math.ceil(fraction * 100000);
+            long actual = histogram.getPercentile(fraction);
+            assertEquals("p" + fraction, expected, actual, expected * 0.125);
+        }
+    }
+
+    @Test
+    public void testPercentileIsClampedToMax() {
+        Histogram histogram = new Histogram();
+        histogram.record(961);
+        assertEquals(961, histogram.getPercentile(0.5));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        long top = histogram.getPercentile(1);
+        assertTrue(top > Long.MAX_VALUE / 8 * 7);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests parse small hand built JPEG marker structures, whole and
+ * damaged, with and without an EXIF capture time.
+ *
+ * @author Kieran
+ */
+public class JpegInfoTest {
+
+    private static final int[] SOI = {0xFF, 0xD8};
+    private static final int[] EOI = {0xFF, 0xD9};
+    private static final int[] FRAME = {0xFF, 0xC0, 0x00, 0x11, 0x08,
+            0x09, 0x78, 0x0C, 0xD0, 0x03,
+            0x01, 0x22, 0x00, 0x02, 0x11, 0x01, 0x03, 0x11, 0x01};
+    // The scan data holds a stuffed 0xFF and a restart marker, neither of
+    // which ends the scan.
+    private static final int[] SCAN = {0xFF, 0xDA, 0x00, 0x0C, 0x03,
+            0x01, 0x00, 0x02, 0x11, 0x03, 0x11, 0x00, 0x3F, 0x00,
+            0x12, 0x34, 0xFF, 0x00, 0x56, 0xFF, 0xD0, 0x78};
+
+    @Test
+    public void testWholeImage() {
+        JpegInfo info = JpegInfo.parse(jpeg(SOI, exif(), FRAME, SCAN, EOI));
+        assertTrue(info.getProblem(), info.isValid());
+        assertEquals(3280, info.getWidth());
+        assertEquals(2424, info.getHeight());
+        assertEquals("2016-03-14T15:09:26", info.getTimestamp());
+    }
+
+    @Test
+    public void testImageWithoutExif() {
+        JpegInfo info = JpegInfo.parse(jpeg(SOI, FRAME, SCAN, EOI));
+        assertTrue(info.isValid());
+        assertNull(info.getTimestamp());
+    }
+
+    @Test
+    public void testTruncatedImage() {
+        byte[] whole = jpeg(SOI, exif(), FRAME, SCAN, EOI);
+        JpegInfo info = JpegInfo.parse(Arrays.copyOf(whole, whole.length - 2));
+        assertFalse(info.isValid());
+        assertEquals("truncated image data", info.getProblem());
+        info = JpegInfo.parse(Arrays.copyOf(whole, 30));
+        assertEquals("truncated marker segment", info.getProblem());
+    }
+
+    @Test
+    public void testMissingParts() {
+        assertEquals("missing start of image",
+                JpegInfo.parse(jpeg(FRAME, SCAN, EOI)).getProblem());
+        assertEquals("no image data",
+                JpegInfo.parse(jpeg(SOI, FRAME, EOI)).getProblem());
+        assertEquals("missing start of image",
+                JpegInfo.parse(new byte[0]).getProblem());
+    }
+
+    /**
+     * This function builds an APP1 segment holding a big-endian TIFF
+     * header and a first directory with a single DateTime entry.
+     */
+    private static int[] exif() {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        put(tiff, 'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08);
+        put(tiff, 0x00, 0x01);
+        put(tiff, 0x01, 0x32, 0x00, 0x02, 0x00, 0x00, 0x00, 0x14,
+                                                0x00, 0x00, 0x00, 0x1A);
+        put(tiff, 0x00, 0x00, 0x00, 0x00);
+        byte[] time = "2016:03:14 15:09:26\0".getBytes(StandardCharsets.US_ASCII);
+        tiff.write(time, 0, time.length);
+        int length = 2 + 6 + tiff.size();
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        put(segment, 0xFF, 0xE1, length >> 8, length & 0xFF,
+                                            'E', 'x', 'i', 'f', 0, 0);
+        byte[] body = tiff.toByteArray();
+        segment.write(body, 0, body.length);
+        byte[] bytes = segment.toByteArray();
+        int[] values = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            values[i] = bytes[i] & 0xFF;
+        }
+        return values;
+    }
+
+    private static byte[] jpeg(int[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int[] part : parts) {
+            put(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void put(ByteArrayOutputStream out, int... values) {
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+
+}
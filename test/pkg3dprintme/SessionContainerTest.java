@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * These tests write session containers and read them back, both through
+ * the index and trailer a closed writer leaves and by walking the image
+ * entries of one a crash left without them.
+ *
+ * @author Kieran
+ */
+public class SessionContainerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private Host first;
+    private Host second;
+
+    @Before
+    public void setUp() {
+        path = SessionContainer.getPath(
+                            folder.getRoot().toPath().resolve("session"));
+        first = new Host("raspberrypi", "10.0.0.2", Host.CONNECTED);
+        second = new Host("raspberrypi", "10.0.0.1", Host.CONNECTED);
+    }
+
+    @Test
+    public void testIndexIsReadFromTrailer() throws IOException {
+        try (SessionContainer.Writer writer = new SessionContainer.Writer(path)) {
+            writer.append(first, 1, image(1, 300));
+            writer.append(first, 0, image(2, 200));
+            writer.append(second, 0, image(3, 100));
+        }
+        try (SessionContainer container = SessionContainer.open(path)) {
+            List<SessionContainer.Entry> entries = container.getEntries();
+            assertEquals(3, entries.size());
+            assertEquals("10.0.0.1", entries.get(0).getAddress());
+            assertEquals("10.0.0.2", entries.get(1).getAddress());
+            assertEquals(0, entries.get(1).getIndex());
+            assertEquals(1, entries.get(2).getIndex());
+            assertArrayEquals(image(1, 300), bytes(container, "10.0.0.2", 1));
+            assertArrayEquals(image(3, 100), bytes(container, "10.0.0.1", 0));
+            assertNull(container.find("10.0.0.1", 1));
+        }
+    }
+
+    @Test
+    public void testLaterImageReplacesEarlier() throws IOException {
+        try (SessionContainer.Writer writer = new SessionContainer.Writer(path)) {
+            writer.append(first, 0, image(1, 100));
+            writer.append(first, 0, image(1, 100));
+        }
+        assertEquals("a repeated image is not written again",
+                16 + 3 * SessionContainer.ENTRY_SIZE + 100, Files.size(path));
+        try (SessionContainer.Writer writer = new SessionContainer.Writer(path)) {
+            writer.append(first, 0, image(2, 100));
+        }
+        try (SessionContainer container = SessionContainer.open(path)) {
+            assertEquals(1, container.getEntries().size());
+            assertArrayEquals(image(2, 100), bytes(container, "10.0.0.2", 0));
+        }
+    }
+
+    @Test
+    public void testContainerWithoutTrailerIsRecovered() throws IOException {
+        Path crashed = path.resolveSibling("crashed" + SessionContainer.EXTENSION);
+        try (SessionContainer.Writer writer = new SessionContainer.Writer(path)) {
+            writer.append(first, 0, image(1, 1000));
+            writer.append(first, 1, image(2, 1000));
+            Files.copy(path, crashed);
+        }
+        // Cut the second image short, as a crash part way through it would.
+        try (FileChannel file = FileChannel.open(crashed,
+                                            StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 10);
+        }
+        try (SessionContainer container = SessionContainer.open(crashed)) {
+            assertEquals(1, container.getEntries().size());
+            assertArrayEquals(image(1, 1000), bytes(container, "10.0.0.2", 0));
+        }
+        try (SessionContainer.Writer writer
+                                = new SessionContainer.Writer(crashed)) {
+            writer.append(first, 1, image(2, 1000));
+        }
+        try (SessionContainer container = SessionContainer.open(crashed)) {
+            assertEquals(2, container.getEntries().size());
+            assertArrayEquals(image(2, 1000), bytes(container, "10.0.0.2", 1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherFileIsRefused() throws IOException {
+        Files.write(path, image(4, 200));
+        SessionContainer.open(path).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testLongAddressIsRefused() throws IOException {
+        char[] address = new char[41];
+        Arrays.fill(address, 'a');
+        try (SessionContainer.Writer writer = new SessionContainer.Writer(path)) {
+            writer.append(new Host("pi", new String(address), Host.CONNECTED),
+                                                        0, image(5, 10));
+        }
+    }
+
+    private static byte[] image(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    private static byte[] bytes(SessionContainer container, String address,
+                                            int index) throws IOException {
+        ByteBuffer image = container.read(container.find(address, index));
+        byte[] data = new byte[image.remaining()];
+        image.get(data);
+        return data;
+    }
+
+}
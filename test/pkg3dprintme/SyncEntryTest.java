@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Kieran
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pkg3dprintme;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests estimate sync entries from round trips to a simulated host
+ * clock with a known offset and drift, and convert times both ways.
+ *
+ * @author Kieran
+ */
+public class SyncEntryTest {
+
+    private static final long MS = 1000000;
+    private static final long START = 5000 * MS;
+    private static final long OFFSET = 123456 * MS;
+
+    @Test
+    public void testOffsetIsEstimated() {
+        SyncEntry entry = probe(0, new long[] {400000, 400000, 900000,
+                                                400000, 5000000, 400000});
+        assertEquals(OFFSET, entry.getOffset(), 1000);
+        assertEquals(0, entry.getDrift(), 1e-9);
+        assertEquals(400000, entry.getDelay());
+        long local = START + 20 * MS;
+        assertEquals(local + OFFSET, entry.toHostTime(local), 1000);
+    }
+
+    @Test
+    public void testDriftIsEstimated() {
+        double drift = 50e-6;
+        SyncEntry entry = probe(drift, new long[] {400000, 400000, 400000,
+                                                    400000, 400000, 400000});
+        assertEquals(drift, entry.getDrift(), 1e-7);
+        long local = START + 1000 * MS;
+        assertEquals(host(local, drift), entry.toHostTime(local), 2000);
+    }
+
+    @Test
+    public void testSteepDriftIsDiscarded() {
+        SyncEntry entry = probe(1e-3, new long[] {400000, 400000, 400000});
+        assertEquals(0, entry.getDrift(), 0);
+    }
+
+    @Test
+    public void testConversionsAreInverse() {
+        SyncEntry entry = new SyncEntry(START, OFFSET, 40e-6, 400000, 300000);
+        for (long local : new long[] {0, START, START + 60000 * MS}) {
+            assertEquals(local, entry.toLocalTime(entry.toHostTime(local)), 1);
+        }
+    }
+
+    /**
+     * This function simulates a round trip every 10 ms, each taking the
+     * given time on the wire, with the host spending 50 us between the
+     * ping and the pong.
+     */
+    private static SyncEntry probe(double drift, long[] rtts) {
+        int samples = rtts.length;
+        long[] sent = new long[samples];
+        long[] hostReceived = new long[samples];
+        long[] hostSent = new long[samples];
+        long[] received = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            sent[i] = START + i * 10 * MS;
+            long arrived = sent[i] + rtts[i] / 2;
+            hostReceived[i] = host(arrived, drift);
+            hostSent[i] = host(arrived + 50000, drift);
+            received[i] = arrived + 50000 + rtts[i] / 2;
+        }
+        return SyncEntry.estimate(sent, hostReceived, hostSent, received);
+    }
+
+    private static long host(long local, double drift) {
+        return local + OFFSET + Math.round(drift * (local - START));
+    }
+
+}